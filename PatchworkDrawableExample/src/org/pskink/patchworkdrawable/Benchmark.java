@@ -0,0 +1,295 @@
+package org.pskink.patchworkdrawable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.pskink.patchworkdrawable.drawable.Atlas;
+import org.pskink.patchworkdrawable.drawable.BinaryScene;
+import org.pskink.patchworkdrawable.drawable.KeyframeAnimation;
+import org.pskink.patchworkdrawable.drawable.PatchworkDrawable;
+import org.pskink.patchworkdrawable.drawable.PatchworkDrawable.Layer;
+import org.pskink.patchworkdrawable.drawable.PatchworkDrawable.TimeSource;
+import org.pskink.patchworkdrawable.drawable.RenderStats;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.util.Log;
+import android.view.animation.Animation;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+/**
+ * Measures the throughput and the allocations per operation of
+ * {@link PatchworkDrawable#draw(Canvas)} (into a Bitmap),
+ * {@link PatchworkDrawable#getLayersAt(List, Matrix, float, float)},
+ * {@link PatchworkDrawable#findLayerByName(String)} and
+ * {@link PatchworkDrawable#addLayers(int)} for scenes of 10 to 10,000 layers
+ * with various ratios of animated layers and matrix complexity.
+ *
+ * The cases run one by one on the main thread, the results are shown
+ * and logged with tag "Benchmark".
+ */
+public class Benchmark extends Activity {
+    private final static String TAG = "Benchmark";
+
+    private final static int[] LAYER_COUNTS = {
+            10, 100, 1000, 10000,
+    };
+    private final static float[] ANIMATED_RATIOS = {
+            0, 0.1f, 1,
+    };
+    private final static int MATRIX_TRANSLATE = 0;
+    private final static int MATRIX_ROTATE_SCALE = 1;
+    private final static int MATRIX_MINIFY = 2;
+    private final static int MATRIX_MINIFY_MIPMAPPED = 3;
+    private final static String[] MATRIX_NAMES = {
+            "translate", "rotate+scale", "1/8 scale", "1/8 scale mipmapped",
+    };
+    private final static String[] FRAMES = {
+            "a", "n", "d", "r", "o", "i", "d2",
+    };
+    private final static int WARMUP_OPS = 20;
+    private final static long MIN_TIME_NANOS = 500 * 1000 * 1000L;
+    private final static int NUM_POINTS = 64;
+
+    private TextView mOutput;
+    private Handler mHandler;
+    private LinkedList<Runnable> mCases;
+    private long mTime;
+    private TimeSource mTimeSource = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return mTime;
+        }
+    };
+
+    private interface Op {
+        void run(int i) throws Exception;
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mOutput = new TextView(this);
+        ScrollView sv = new ScrollView(this);
+        sv.addView(mOutput);
+        setContentView(sv);
+        mHandler = new Handler();
+        mCases = new LinkedList<Runnable>();
+        for (final int numLayers : LAYER_COUNTS) {
+            for (final float ratio : ANIMATED_RATIOS) {
+                for (int k = 0; k < MATRIX_NAMES.length; k++) {
+                    final int matrixType = k;
+                    mCases.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            benchmarkScene(numLayers, ratio, matrixType);
+                        }
+                    });
+                }
+            }
+        }
+        mCases.add(new Runnable() {
+            @Override
+            public void run() {
+                benchmarkLoading();
+            }
+        });
+        report("running " + mCases.size() + " cases...");
+        runNextCase();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCases.clear();
+    }
+
+    private void runNextCase() {
+        // give the UI a chance to show the results between the cases
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCases.isEmpty()) {
+                    return;
+                }
+                try {
+                    mCases.removeFirst().run();
+                } catch (Exception e) {
+                    Log.e(TAG, "case failed", e);
+                    report("case failed: " + e);
+                }
+                if (mCases.isEmpty()) {
+                    report("done");
+                } else {
+                    runNextCase();
+                }
+            }
+        });
+    }
+
+    private void benchmarkScene(int numLayers, float animatedRatio, int matrixType) {
+        final PatchworkDrawable ld = createScene(numLayers, animatedRatio, matrixType);
+        int width = ld.getIntrinsicWidth();
+        int height = ld.getIntrinsicHeight();
+        ld.setBounds(0, 0, width, height);
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final float[] xs = new float[NUM_POINTS];
+        final float[] ys = new float[NUM_POINTS];
+        Random r = new Random(numLayers);
+        for (int i = 0; i < NUM_POINTS; i++) {
+            xs[i] = r.nextFloat() * width;
+            ys[i] = r.nextFloat() * height;
+        }
+        final List<Layer> list = new ArrayList<Layer>();
+
+        String title = String.format(Locale.US, "%d layers, %.0f%% animated, %s",
+                numLayers, animatedRatio * 100, MATRIX_NAMES[matrixType]);
+        report(title);
+        report(measure("  draw", new Op() {
+            @Override
+            public void run(int i) {
+                mTime += 16;
+                ld.draw(canvas);
+            }
+        }));
+        // one more frame with the stats enabled to show what was drawn
+        ld.setStatsEnabled(true);
+        mTime += 16;
+        ld.draw(canvas);
+        RenderStats stats = ld.getStats();
+        report("    drawn: " + stats.getLayersDrawn() + ", culled: " + stats.getLayersCulled() +
+                ", animations: " + stats.getActiveAnimations());
+        ld.setStatsEnabled(false);
+        report(measure("  getLayersAt", new Op() {
+            @Override
+            public void run(int i) {
+                int idx = i % NUM_POINTS;
+                ld.getLayersAt(list, null, xs[idx], ys[idx]);
+            }
+        }));
+        bitmap.recycle();
+    }
+
+    private PatchworkDrawable createScene(int numLayers, float animatedRatio, int matrixType) {
+        PatchworkDrawable ld = new PatchworkDrawable(this, R.drawable.android_background);
+        ld.setTimeSource(mTimeSource);
+        Atlas atlas;
+        try {
+            atlas = ld.loadAtlas(R.xml.android_atlas);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        KeyframeAnimation keyframes = new KeyframeAnimation();
+        keyframes.addKeyframe(KeyframeAnimation.TRANSLATE_X, 0, 0);
+        keyframes.addKeyframe(KeyframeAnimation.TRANSLATE_X, 1000, 50, KeyframeAnimation.EASE_IN_OUT);
+        keyframes.addKeyframe(KeyframeAnimation.ROTATE, 1000, 90);
+        keyframes.setRepeatCount(Animation.INFINITE);
+        keyframes.setRepeatMode(Animation.REVERSE);
+
+        int width = ld.getIntrinsicWidth();
+        int height = ld.getIntrinsicHeight();
+        Random r = new Random(numLayers);
+        Matrix m = new Matrix();
+        ld.beginBatch();
+        for (int i = 0; i < numLayers; i++) {
+            m.setTranslate(r.nextFloat() * width, r.nextFloat() * height);
+            if (matrixType == MATRIX_ROTATE_SCALE) {
+                float scale = 0.5f + r.nextFloat();
+                m.preRotate(r.nextFloat() * 360);
+                m.preScale(scale, scale);
+            } else
+            if (matrixType == MATRIX_MINIFY || matrixType == MATRIX_MINIFY_MIPMAPPED) {
+                m.preScale(0.125f, 0.125f);
+            }
+            Layer layer = ld.addAtlasLayer(atlas, FRAMES[i % FRAMES.length], m);
+            if (r.nextFloat() < animatedRatio) {
+                layer.startKeyframeAnimation(keyframes);
+            }
+        }
+        ld.commitBatch();
+        ld.setMipmappingEnabled(matrixType == MATRIX_MINIFY_MIPMAPPED);
+        return ld;
+    }
+
+    private void benchmarkLoading() {
+        final PatchworkDrawable ld = new PatchworkDrawable(this, R.drawable.android_background);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            BinaryScene.compile(getResources(), R.xml.layers, out);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        final byte[] scene = out.toByteArray();
+
+        report("scene loading (R.xml.layers)");
+        report(measure("  addLayers(xml)", new Op() {
+            @Override
+            public void run(int i) throws Exception {
+                ld.removeAllLayers();
+                ld.addLayers(R.xml.layers);
+            }
+        }));
+        report(measure("  addLayers(binary)", new Op() {
+            @Override
+            public void run(int i) throws Exception {
+                ld.removeAllLayers();
+                ld.addLayers(new ByteArrayInputStream(scene));
+            }
+        }));
+        final String[] names = {
+                "layer0", "gradient_drawable", "no_such_layer",
+        };
+        report(measure("  findLayerByName", new Op() {
+            @Override
+            public void run(int i) {
+                ld.findLayerByName(names[i % names.length]);
+            }
+        }));
+        ld.removeAllLayers();
+    }
+
+    /**
+     * Runs the operation for at least {@link #MIN_TIME_NANOS} after a warmup
+     * @return The throughput and the number of objects allocated per operation
+     */
+    private String measure(String name, Op op) {
+        try {
+            for (int i = 0; i < WARMUP_OPS; i++) {
+                op.run(i);
+            }
+            int ops = 0;
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                op.run(ops++);
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MIN_TIME_NANOS);
+            Debug.stopAllocCounting();
+            int allocs = Debug.getThreadAllocCount();
+            return String.format(Locale.US, "%s: %.1f ops/s, %.1f us/op, %.2f allocs/op",
+                    name, ops * 1e9 / elapsed, elapsed / 1e3 / ops, (float) allocs / ops);
+        } catch (Exception e) {
+            Debug.stopAllocCounting();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void report(String line) {
+        Log.d(TAG, line);
+        mOutput.append(line + "\n");
+    }
+}
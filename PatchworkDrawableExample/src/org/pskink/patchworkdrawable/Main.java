@@ -18,6 +18,8 @@ public class Main extends Activity implements OnItemClickListener {
         ArrayAdapter<String> a = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1);
         a.add("android");
         a.add("flag");
+        a.add("flag group");
+        a.add("benchmark");
         lv.setAdapter(a);
         lv.setOnItemClickListener(this);
         setContentView(lv);
@@ -26,6 +28,10 @@ public class Main extends Activity implements OnItemClickListener {
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
         String item = (String) parent.getAdapter().getItem(position);
+        if (item.equals("benchmark")) {
+            startActivity(new Intent(this, Benchmark.class));
+            return;
+        }
         Intent intent = new Intent(this, Show.class);;
         intent.putExtra("name", item);
         startActivity(intent);
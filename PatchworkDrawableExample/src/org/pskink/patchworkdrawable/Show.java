@@ -4,24 +4,20 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
+import org.pskink.patchworkdrawable.drawable.Atlas;
 import org.pskink.patchworkdrawable.drawable.PatchworkDrawable;
 import org.pskink.patchworkdrawable.drawable.PatchworkDrawable.Layer;
+import org.pskink.patchworkdrawable.drawable.PatchworkDrawable.LayerGroup;
+import org.pskink.patchworkdrawable.drawable.PathAnimation;
+import org.pskink.patchworkdrawable.drawable.PathMotion;
 import org.xmlpull.v1.XmlPullParserException;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.content.res.Resources;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.ColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Path;
-import android.graphics.PathMeasure;
-import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.AnimationDrawable;
-import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -50,7 +46,11 @@ public class Show extends Activity {
             android();
         } else
         if (name.equals("flag")) {
-            flag();
+            flag(R.xml.layers);
+        } else
+        if (name.equals("flag group")) {
+            // the gradient layer in a translucent <group>
+            flag(R.xml.layers_group);
         } else {
             Log.d(TAG, "onCreate unknown name [" + name + "]");
         }
@@ -60,17 +60,31 @@ public class Show extends Activity {
         final List<Layer> list = new LinkedList<Layer>();
         final ImageView iv = new ImageView(this);
         PatchworkDrawable ld = new PatchworkDrawable(this, R.drawable.android_background);
-        Resources res = ld.getResources();
         iv.setImageDrawable(ld);
-        Bitmap android = BitmapFactory.decodeResource(res, R.drawable.android);
-        final Layer[] layers = new Layer[7];
-        layers[0] = addLayer(ld, android, new Rect(0, 0, 54, 53));
-        layers[1] = addLayer(ld, android, new Rect(64, 0, 118, 53));
-        layers[2] = addLayer(ld, android, new Rect(128, 0, 182, 53));
-        layers[3] = addLayer(ld, android, new Rect(192, 0, 246, 53));
-        layers[4] = addLayer(ld, android, new Rect(256, 0, 310, 53));
-        layers[5] = addLayer(ld, android, new Rect(320, 0, 331, 53));
-        layers[6] = addLayer(ld, android, new Rect(341, 0, 396, 53));
+        Atlas atlas;
+        try {
+            atlas = ld.loadAtlas(R.xml.android_atlas);
+        } catch (XmlPullParserException e) {
+            e.printStackTrace();
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        String[] frames = {
+                "a", "n", "d", "r", "o", "i", "d2",
+        };
+        Matrix groupMatrix = new Matrix();
+        groupMatrix.setTranslate(10, 10);
+        LayerGroup group = ld.addGroup(null, "android", groupMatrix);
+        final Layer[] layers = new Layer[frames.length];
+        ld.beginBatch();
+        for (int i = 0; i < frames.length; i++) {
+            layers[i] = addLayer(ld, group, atlas, frames[i]);
+            // the letters are irregular: ignore touches of their transparent pixels
+            layers[i].setAlphaHitTest(true);
+        }
+        ld.commitBatch();
 
         Path p = new Path();
         p.moveTo(-0.43829472f, 0.024136967f);
@@ -83,7 +97,8 @@ public class Show extends Activity {
         p.cubicTo(60.456489f, 37.151966f, 1.727109f, 7.6466335f, -0.43829472f,
                 0.024136967f);
         p.close();
-        final PathMeasure pm = new PathMeasure(p, false);
+        // sampled once, shared by all the animations
+        final PathMotion motion = new PathMotion(p);
 
         final Handler handler = new Handler() {
             @Override
@@ -98,7 +113,7 @@ public class Show extends Activity {
             public void onClick(View v) {
                 int delay = 100;
                 for (int i = 0; i < layers.length; i++) {
-                    Animation a = new PathTranslateAnimation(pm);
+                    Animation a = new PathTranslateAnimation(motion);
                     Message msg = handler.obtainMessage(i, a);
                     handler.sendMessageDelayed(msg, delay);
                     delay += 150;
@@ -130,75 +145,40 @@ public class Show extends Activity {
         setContentView(iv);
     }
 
-    private Layer addLayer(PatchworkDrawable ld, Bitmap b, Rect rect) {
-        Drawable d = new SubImageDrawable(b, rect);
+    private Layer addLayer(PatchworkDrawable ld, LayerGroup group, Atlas atlas, String frameName) {
+        Rect rect = atlas.getFrame(frameName);
         Matrix matrix = new Matrix();
-        matrix.preTranslate(rect.left + 10, rect.top + 10);
-        return ld.addLayer(d, matrix);
-    }
-
-    class SubImageDrawable extends Drawable {
-        private Bitmap mBitmap;
-        private Rect mRect;
-        private Rect mDst;
-
-        public SubImageDrawable(Bitmap b, Rect bounds) {
-            mBitmap = b;
-            mRect = bounds;
-            mDst = new Rect(bounds);
-            mDst.offsetTo(0, 0);
-            setBounds(mDst);
-        }
-
-        @Override
-        public void draw(Canvas canvas) {
-            canvas.drawBitmap(mBitmap, mRect, mDst, null);
-        }
-
-        @Override
-        public void setAlpha(int alpha) {
-        }
-
-        @Override
-        public void setColorFilter(ColorFilter cf) {
-        }
-
-        @Override
-        public int getOpacity() {
-            return PixelFormat.TRANSLUCENT;
-        }
+        matrix.preTranslate(rect.left, rect.top);
+        return ld.addAtlasLayer(group, atlas, frameName, matrix);
     }
 
-    class PathTranslateAnimation extends Animation {
-        private PathMeasure pm;
-        private float length;
-
-        public PathTranslateAnimation(PathMeasure pm) {
+    class PathTranslateAnimation extends PathAnimation {
+        public PathTranslateAnimation(PathMotion motion) {
+            super(motion);
             setDuration(1000);
-            this.pm = pm;
-            length = pm.getLength();
         }
 
         @Override
         protected void applyTransformation(float interpolatedTime,
                 Transformation t) {
-            Matrix m = t.getMatrix();
-            float distance = interpolatedTime * length;
-            pm.getMatrix(distance, m, PathMeasure.POSITION_MATRIX_FLAG);
+            super.applyTransformation(interpolatedTime, t);
 
+            Matrix m = t.getMatrix();
             m.preRotate((float) Math.sin(Math.PI * interpolatedTime) * 45);
             float scale = 1 + 2 * (float) Math.sin(Math.PI * interpolatedTime);
             m.preScale(scale, scale);
         }
     }
 
-    private void flag() {
+    private void flag(int layersId) {
         ImageView iv = new ImageView(this);
         PatchworkDrawable ld = new PatchworkDrawable(this, R.drawable.background);
         iv.setImageDrawable(ld);
         setContentView(iv);
+        ld.setLazyInflationEnabled(true);
+        ld.setLayerMemoryBudget(2 * 1024 * 1024);
         try {
-            ld.addLayers(R.xml.layers);
+            ld.addLayers(layersId);
         } catch (XmlPullParserException e) {
             e.printStackTrace();
         } catch (IOException e) {
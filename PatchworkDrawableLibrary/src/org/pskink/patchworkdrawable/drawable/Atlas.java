@@ -0,0 +1,63 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * A sprite sheet: one Bitmap with named source rectangles (frames).
+ * 
+ * Layers added with {@link PatchworkDrawable#addAtlasLayer(Atlas, String, android.graphics.Matrix)}
+ * that share the same Atlas are drawn without any Canvas state changes.
+ * Consecutive ones with the same alpha and ColorFilter are batched into
+ * one Canvas.drawVertices call, except on hardware accelerated Canvases.
+ * An Atlas can be defined in a xml file, see {@link PatchworkDrawable#loadAtlas(int)}:
+ * <pre>
+ * &lt;atlas android:drawable="@drawable/sheet"&gt;
+ *     &lt;frame android:name="first" liv:left="0" liv:top="0" liv:width="54" liv:height="53" /&gt;
+ *     ...
+ * &lt;/atlas&gt;
+ * </pre>
+ */
+public class Atlas {
+    private Bitmap mBitmap;
+    private HashMap<String, Rect> mFrames;
+    Paint mPaint;
+
+    /**
+     * Creates a new Atlas
+     * @param bitmap The sprite sheet
+     */
+    public Atlas(Bitmap bitmap) {
+        mBitmap = bitmap;
+        mFrames = new HashMap<String, Rect>();
+        mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    }
+
+    /**
+     * Adds a named frame
+     * @param name Name of the frame
+     * @param src Source rectangle within the sprite sheet
+     */
+    public void addFrame(String name, Rect src) {
+        mFrames.put(name, new Rect(src));
+    }
+
+    /**
+     * Get a frame
+     * @param name Name of the frame
+     * @return The source rectangle or null if not found
+     */
+    public Rect getFrame(String name) {
+        return mFrames.get(name);
+    }
+
+    /**
+     * @return The sprite sheet
+     */
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+}
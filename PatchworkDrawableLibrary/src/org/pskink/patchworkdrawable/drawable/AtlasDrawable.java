@@ -0,0 +1,78 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * A Drawable that draws one frame of an {@link Atlas}
+ */
+public class AtlasDrawable extends Drawable {
+    private Atlas mAtlas;
+    private Rect mSrc;
+    private int mAlpha = 255;
+    private ColorFilter mColorFilter;
+
+    /**
+     * Creates a new AtlasDrawable, its bounds are set to the frame size
+     * @param atlas The Atlas to draw from
+     * @param frameName Name of the frame
+     */
+    public AtlasDrawable(Atlas atlas, String frameName) {
+        mAtlas = atlas;
+        setFrame(frameName);
+        setBounds(0, 0, mSrc.width(), mSrc.height());
+    }
+
+    /**
+     * Changes the drawn frame, the bounds are not changed
+     * @param frameName Name of the frame
+     * @throws IllegalArgumentException if there is no such frame
+     */
+    public void setFrame(String frameName) {
+        Rect src = mAtlas.getFrame(frameName);
+        if (src == null) {
+            throw new IllegalArgumentException("no frame [" + frameName + "] found");
+        }
+        mSrc = src;
+        invalidateSelf();
+    }
+
+    public Atlas getAtlas() {
+        return mAtlas;
+    }
+
+    Rect getSrc() {
+        return mSrc;
+    }
+
+    ColorFilter getSpriteColorFilter() {
+        return mColorFilter;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        Paint paint = mAtlas.mPaint;
+        paint.setAlpha(mAlpha);
+        paint.setColorFilter(mColorFilter);
+        canvas.drawBitmap(mAtlas.getBitmap(), mSrc, getBounds(), paint);
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mAlpha = alpha;
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        mColorFilter = cf;
+    }
+
+    @Override
+    public int getOpacity() {
+        return mAtlas.getBitmap().hasAlpha() || mAlpha < 255? PixelFormat.TRANSLUCENT : PixelFormat.OPAQUE;
+    }
+}
@@ -0,0 +1,286 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.pskink.patchworkdrawable.drawable.LayersParser.GroupInfo;
+import org.pskink.patchworkdrawable.drawable.LayersParser.LayerInfo;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.content.res.Resources;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+
+/**
+ * Compact binary form of the layers xml file that can be loaded with
+ * {@link PatchworkDrawable#addLayers(InputStream)} much faster than
+ * the xml itself.
+ *
+ * The layout (big endian) is:
+ * <pre>
+ * int     magic "PWDS"
+ * int     version
+ * int     number of strings
+ * int     number of groups
+ * int     number of layers
+ * strings: short length, UTF-8 bytes
+ * groups:  int name index (-1 if none), int parent group index (-1 if none),
+ *          float alpha, int flags, [9 floats matrix]
+ * layers:  int name index (-1 if none), int group index (-1 if none), int id, 
+ *          int drawable resource id, int flags, [9 floats matrix], [4 ints bounds]
+ * </pre>
+ *
+ * Note that the resource identifiers are stored as they are, so a compiled
+ * scene is valid only for the same build of the application that compiled
+ * it (e.g. compile it once and cache it keyed by the version code).
+ */
+public class BinaryScene {
+    private final static int MAGIC = 0x50574453;
+    private final static int VERSION = 2;
+
+    private final static int FLAG_MATRIX = 1;
+    private final static int FLAG_BOUNDS = 2;
+
+    private final static int HEADER_SIZE = 20;
+    private final static int GROUP_SIZE = 16;
+    private final static int LAYER_SIZE = 20;
+    private final static int MATRIX_SIZE = 9 * 4;
+    private final static int BOUNDS_SIZE = 4 * 4;
+
+    /**
+     * Converts the layers xml file into its binary form
+     * @param res Resources used to obtain the xml file
+     * @param id Id of the xml file
+     * @param out Where the binary scene is written
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    public static void compile(Resources res, int id, OutputStream out) throws XmlPullParserException, IOException {
+        final ArrayList<GroupInfo> groups = new ArrayList<GroupInfo>();
+        final ArrayList<LayerInfo> layers = new ArrayList<LayerInfo>();
+        LayersParser.parse(res, id, new LayersParser.Handler() {
+            @Override
+            public void onGroup(GroupInfo info) {
+                info.target = groups.size();
+                groups.add(info);
+            }
+
+            @Override
+            public void onLayer(LayerInfo info) {
+                layers.add(info);
+            }
+        });
+
+        ArrayList<String> strings = new ArrayList<String>();
+        HashMap<String, Integer> stringIndices = new HashMap<String, Integer>();
+        int numGroups = groups.size();
+        int numLayers = layers.size();
+        for (int i = 0; i < numGroups + numLayers; i++) {
+            String name = i < numGroups? groups.get(i).name : layers.get(i - numGroups).name;
+            if (name != null && !stringIndices.containsKey(name)) {
+                stringIndices.put(name, strings.size());
+                strings.add(name);
+            }
+        }
+
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(strings.size());
+        dos.writeInt(numGroups);
+        dos.writeInt(numLayers);
+        for (int i = 0; i < strings.size(); i++) {
+            byte[] bytes = strings.get(i).getBytes("UTF-8");
+            dos.writeShort(bytes.length);
+            dos.write(bytes);
+        }
+        float[] values = new float[9];
+        for (int i = 0; i < numGroups; i++) {
+            GroupInfo info = groups.get(i);
+            dos.writeInt(info.name != null? stringIndices.get(info.name) : -1);
+            dos.writeInt(info.parent != null? (Integer) info.parent.target : -1);
+            dos.writeFloat(info.alpha);
+            dos.writeInt(info.matrix != null? FLAG_MATRIX : 0);
+            if (info.matrix != null) {
+                writeMatrix(dos, info.matrix, values);
+            }
+        }
+        for (int i = 0; i < numLayers; i++) {
+            LayerInfo info = layers.get(i);
+            int flags = 0;
+            if (info.matrix != null) {
+                flags |= FLAG_MATRIX;
+            }
+            if (info.bounds != null) {
+                flags |= FLAG_BOUNDS;
+            }
+            dos.writeInt(info.name != null? stringIndices.get(info.name) : -1);
+            dos.writeInt(info.group != null? (Integer) info.group.target : -1);
+            dos.writeInt(info.id);
+            dos.writeInt(info.drawableId);
+            dos.writeInt(flags);
+            if (info.matrix != null) {
+                writeMatrix(dos, info.matrix, values);
+            }
+            if (info.bounds != null) {
+                dos.writeInt(info.bounds.left);
+                dos.writeInt(info.bounds.top);
+                dos.writeInt(info.bounds.right);
+                dos.writeInt(info.bounds.bottom);
+            }
+        }
+        dos.flush();
+    }
+
+    private static void writeMatrix(DataOutputStream dos, Matrix m, float[] values) throws IOException {
+        m.getValues(values);
+        for (int v = 0; v < 9; v++) {
+            dos.writeFloat(values[v]);
+        }
+    }
+
+    /**
+     * Reads the binary scene
+     * @param in The stream to read from, it is not closed
+     * @param handler Called for every group and layer found
+     * @throws IOException also when the scene is corrupted
+     */
+    static void read(InputStream in, LayersParser.Handler handler) throws IOException {
+        ByteBuffer buf = readFully(in);
+        try {
+            read(buf, handler);
+        } catch (BufferUnderflowException e) {
+            IOException ioe = new IOException("truncated compiled scene");
+            ioe.initCause(e);
+            throw ioe;
+        } catch (IndexOutOfBoundsException e) {
+            IOException ioe = new IOException("corrupted compiled scene");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    private static void read(ByteBuffer buf, LayersParser.Handler handler) throws IOException {
+        if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+            throw new IOException("not a compiled scene");
+        }
+        int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported compiled scene version: " + version);
+        }
+        int numStrings = buf.getInt();
+        int numGroups = buf.getInt();
+        int numLayers = buf.getInt();
+        // every string takes at least 2 bytes, every group and layer its fixed size
+        if (numStrings < 0 || numGroups < 0 || numLayers < 0 ||
+                (long) numStrings * 2 + (long) numGroups * GROUP_SIZE + (long) numLayers * LAYER_SIZE > buf.remaining()) {
+            throw new IOException("invalid compiled scene counts: " + numStrings + ", " + numGroups + ", " + numLayers);
+        }
+        byte[] array = buf.array();
+        String[] strings = new String[numStrings];
+        for (int i = 0; i < numStrings; i++) {
+            if (buf.remaining() < 2) {
+                throw new IOException("truncated compiled scene");
+            }
+            int length = buf.getShort() & 0xffff;
+            if (buf.remaining() < length) {
+                throw new IOException("truncated compiled scene");
+            }
+            int offset = buf.arrayOffset() + buf.position();
+            strings[i] = new String(array, offset, length, "UTF-8");
+            buf.position(buf.position() + length);
+        }
+        float[] values = new float[9];
+        GroupInfo[] groups = new GroupInfo[numGroups];
+        for (int i = 0; i < numGroups; i++) {
+            if (buf.remaining() < GROUP_SIZE) {
+                throw new IOException("truncated compiled scene");
+            }
+            GroupInfo info = new GroupInfo();
+            info.name = getString(strings, buf.getInt());
+            int parentIdx = buf.getInt();
+            if (parentIdx < -1 || parentIdx >= i) {
+                throw new IOException("invalid parent group index: " + parentIdx);
+            }
+            info.parent = parentIdx >= 0? groups[parentIdx] : null;
+            info.alpha = buf.getFloat();
+            int flags = buf.getInt();
+            if ((flags & FLAG_MATRIX) != 0) {
+                if (buf.remaining() < MATRIX_SIZE) {
+                    throw new IOException("truncated compiled scene");
+                }
+                info.matrix = readMatrix(buf, values);
+            }
+            groups[i] = info;
+            info.reported = true;
+            handler.onGroup(info);
+        }
+        for (int i = 0; i < numLayers; i++) {
+            if (buf.remaining() < LAYER_SIZE) {
+                throw new IOException("truncated compiled scene");
+            }
+            LayerInfo info = new LayerInfo();
+            info.name = getString(strings, buf.getInt());
+            int groupIdx = buf.getInt();
+            if (groupIdx < -1 || groupIdx >= numGroups) {
+                throw new IOException("invalid group index: " + groupIdx);
+            }
+            info.group = groupIdx >= 0? groups[groupIdx] : null;
+            info.id = buf.getInt();
+            info.drawableId = buf.getInt();
+            int flags = buf.getInt();
+            int size = ((flags & FLAG_MATRIX) != 0? MATRIX_SIZE : 0) +
+                    ((flags & FLAG_BOUNDS) != 0? BOUNDS_SIZE : 0);
+            if (buf.remaining() < size) {
+                throw new IOException("truncated compiled scene");
+            }
+            if ((flags & FLAG_MATRIX) != 0) {
+                info.matrix = readMatrix(buf, values);
+            }
+            if ((flags & FLAG_BOUNDS) != 0) {
+                info.bounds = new Rect(buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt());
+            }
+            handler.onLayer(info);
+        }
+    }
+
+    private static String getString(String[] strings, int idx) throws IOException {
+        if (idx < -1 || idx >= strings.length) {
+            throw new IOException("invalid string index: " + idx);
+        }
+        return idx >= 0? strings[idx] : null;
+    }
+
+    private static Matrix readMatrix(ByteBuffer buf, float[] values) {
+        for (int v = 0; v < 9; v++) {
+            values[v] = buf.getFloat();
+        }
+        Matrix m = new Matrix();
+        m.setValues(values);
+        return m;
+    }
+
+    private static ByteBuffer readFully(InputStream in) throws IOException {
+        ReadableByteChannel channel = Channels.newChannel(in);
+        ByteBuffer buf = ByteBuffer.allocate(Math.max(in.available(), 4096));
+        while (channel.read(buf) != -1) {
+            if (!buf.hasRemaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() * 2);
+                buf.flip();
+                bigger.put(buf);
+                buf = bigger;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,377 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+
+/**
+ * Process wide pool of the Bitmaps decoded for the layers, reused by the
+ * next decodes through BitmapFactory.Options.inBitmap (API 11+).
+ *
+ * Only the Bitmaps decoded by {@link PatchworkDrawable} for its layers are
+ * managed: they are reference counted by the layers and the
+ * {@link DrawableCache} entries using them, and returned to the pool
+ * when the last one is gone (e.g. the layers are removed and the cache
+ * entry evicted). The pooled Bitmaps are bucketed by size; before API 19
+ * a Bitmap can only be reused for a Bitmap of the same size and config
+ * decoded without sampling, since API 19 for any not bigger one.
+ * When the pool exceeds its budget the oldest Bitmaps are recycled.
+ *
+ * Do not keep the Drawables of removed layers: their Bitmaps may be
+ * reused by other layers. Call {@link #trimMemory(int)} and
+ * {@link #onLowMemory()} from the corresponding callbacks of the
+ * Application or Activity.
+ */
+public class BitmapPool {
+    /**
+     * Same as ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+     */
+    public final static int TRIM_MEMORY_UI_HIDDEN = 20;
+    /**
+     * Same as ComponentCallbacks2.TRIM_MEMORY_MODERATE
+     */
+    public final static int TRIM_MEMORY_MODERATE = 60;
+
+    private final static int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+    private final static boolean REUSE_SUPPORTED = Build.VERSION.SDK_INT >= 11;
+    private final static boolean REUSE_ANY_SIZE = Build.VERSION.SDK_INT >= 19;
+
+    // not available in the API 8 android.jar
+    private static Field sInBitmapField;
+    private static Field sInMutableField;
+    private static Method sGetAllocationByteCount;
+
+    // Bitmap does not override equals() and hashCode() so this is an identity
+    // map, weak so the Bitmaps of never removed layers are not leaked
+    private static WeakHashMap<Bitmap, int[]> sRefs = new WeakHashMap<Bitmap, int[]>();
+    private static HashMap<Long, ArrayList<Bitmap>> sBuckets = new HashMap<Long, ArrayList<Bitmap>>();
+    // oldest first, the byte size accounted when pooled
+    private static LinkedHashMap<Bitmap, Integer> sPooled = new LinkedHashMap<Bitmap, Integer>();
+    private static int sMaxSize = DEFAULT_MAX_SIZE;
+    private static int sSize;
+    private static int sHitCount;
+    private static int sMissCount;
+    private static int sPutCount;
+    private static int sEvictionCount;
+
+    static {
+        if (REUSE_SUPPORTED) {
+            try {
+                sInBitmapField = BitmapFactory.Options.class.getField("inBitmap");
+                sInMutableField = BitmapFactory.Options.class.getField("inMutable");
+            } catch (NoSuchFieldException e) {
+                sInBitmapField = null;
+            }
+        }
+        if (REUSE_ANY_SIZE) {
+            try {
+                sGetAllocationByteCount = Bitmap.class.getMethod("getAllocationByteCount");
+            } catch (NoSuchMethodException e) {
+                sGetAllocationByteCount = null;
+            }
+        }
+    }
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Sets the maximum size of the pooled Bitmaps, recycling them if needed
+     * @param maxSize The maximum size in bytes, 0 disables the pool
+     */
+    public static synchronized void setMaxSize(int maxSize) {
+        sMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * @return The maximum size of the pooled Bitmaps in bytes
+     */
+    public static synchronized int getMaxSize() {
+        return sMaxSize;
+    }
+
+    /**
+     * @return The current size of the pooled Bitmaps in bytes
+     */
+    public static synchronized int getSize() {
+        return sSize;
+    }
+
+    /**
+     * @return Number of decodes that reused a pooled Bitmap
+     */
+    public static synchronized int getHitCount() {
+        return sHitCount;
+    }
+
+    /**
+     * @return Number of decodes that allocated a new Bitmap
+     */
+    public static synchronized int getMissCount() {
+        return sMissCount;
+    }
+
+    /**
+     * @return Ratio of the decodes that reused a pooled Bitmap (0..1)
+     */
+    public static synchronized float getHitRate() {
+        int count = sHitCount + sMissCount;
+        return count > 0? (float) sHitCount / count : 0;
+    }
+
+    /**
+     * @return Number of Bitmaps returned to the pool
+     */
+    public static synchronized int getPutCount() {
+        return sPutCount;
+    }
+
+    /**
+     * @return Number of pooled Bitmaps recycled to respect the budget
+     */
+    public static synchronized int getEvictionCount() {
+        return sEvictionCount;
+    }
+
+    /**
+     * Releases the memory as the system asks for in
+     * ComponentCallbacks2.onTrimMemory
+     * @param level The trim level
+     */
+    public static synchronized void trimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            trimToSize(0);
+        } else
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            trimToSize(sMaxSize / 2);
+        }
+    }
+
+    /**
+     * Recycles all pooled Bitmaps, to be called from onLowMemory
+     */
+    public static synchronized void onLowMemory() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return true if the decodes can reuse the pooled Bitmaps
+     */
+    static boolean isReuseSupported() {
+        return sInBitmapField != null;
+    }
+
+    /**
+     * Starts managing a Bitmap decoded for the layers
+     */
+    static synchronized void register(Bitmap bitmap) {
+        if (isReuseSupported() && !sRefs.containsKey(bitmap)) {
+            sRefs.put(bitmap, new int[1]);
+        }
+    }
+
+    /**
+     * Adds a reference to the Bitmap of the Drawable if it is managed
+     */
+    static void acquire(Drawable d) {
+        if (d instanceof BitmapDrawable) {
+            acquire(((BitmapDrawable) d).getBitmap());
+        }
+    }
+
+    /**
+     * Removes a reference to the Bitmap of the Drawable if it is managed
+     */
+    static void release(Drawable d) {
+        if (d instanceof BitmapDrawable) {
+            release(((BitmapDrawable) d).getBitmap());
+        }
+    }
+
+    static synchronized void acquire(Bitmap bitmap) {
+        int[] refs = bitmap != null? sRefs.get(bitmap) : null;
+        if (refs != null) {
+            refs[0]++;
+        }
+    }
+
+    /**
+     * Removes a reference, the Bitmap is pooled if it was the last one
+     */
+    static void release(Bitmap bitmap) {
+        synchronized (BitmapPool.class) {
+            int[] refs = bitmap != null? sRefs.get(bitmap) : null;
+            if (refs == null || --refs[0] > 0) {
+                return;
+            }
+            sRefs.remove(bitmap);
+            if (bitmap.isRecycled() || !bitmap.isMutable() || getByteSize(bitmap) > sMaxSize) {
+                return;
+            }
+        }
+        // the caches keyed by the Bitmap must not outlive its content; not
+        // locked by the pool as building a hit mask may decode a Bitmap
+        MipmapCache.remove(bitmap);
+        HitMaskCache.remove(bitmap);
+        put(bitmap);
+    }
+
+    private static synchronized void put(Bitmap bitmap) {
+        int size = getByteSize(bitmap);
+        Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig(), size);
+        ArrayList<Bitmap> bucket = sBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            sBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        sPooled.put(bitmap, size);
+        sSize += size;
+        sPutCount++;
+        trimToSize(sMaxSize);
+    }
+
+    /**
+     * Prepares the options of the decode to reuse a pooled Bitmap, if any
+     * fits the decoded size
+     * @param width Width of the decoded Bitmap (with sampling applied,
+     * rounded up)
+     * @param height Height of the decoded Bitmap
+     * @return true if a pooled Bitmap is used
+     */
+    static boolean prepare(BitmapFactory.Options opts, int width, int height) {
+        if (!isReuseSupported()) {
+            return false;
+        }
+        Bitmap bitmap = null;
+        synchronized (BitmapPool.class) {
+            Bitmap.Config config = opts.inPreferredConfig;
+            if (config == null) {
+                config = Bitmap.Config.ARGB_8888;
+            }
+            int size = width * height * (config == Bitmap.Config.RGB_565? 2 : 4);
+            if (REUSE_ANY_SIZE) {
+                // the bucket of the size and the next bigger one
+                bitmap = take(key(0, 0, null, size), size);
+                if (bitmap == null) {
+                    bitmap = take(key(0, 0, null, size) + 1, size);
+                }
+            } else
+            if (opts.inSampleSize <= 1) {
+                bitmap = take(key(width, height, config, size), size);
+            }
+            if (bitmap != null) {
+                sHitCount++;
+            } else {
+                sMissCount++;
+            }
+        }
+        setOptions(opts, bitmap);
+        return bitmap != null;
+    }
+
+    /**
+     * Called when the decode with the pooled Bitmap failed, the Bitmap
+     * goes back to the pool and the options are reset for a decode without it
+     */
+    static void onReuseFailed(BitmapFactory.Options opts) {
+        synchronized (BitmapPool.class) {
+            sHitCount--;
+            sMissCount++;
+        }
+        Bitmap bitmap = null;
+        try {
+            bitmap = (Bitmap) sInBitmapField.get(opts);
+        } catch (IllegalAccessException e) {
+            // cannot happen: public field
+        }
+        setOptions(opts, null);
+        if (bitmap != null) {
+            put(bitmap);
+        }
+    }
+
+    private static void setOptions(BitmapFactory.Options opts, Bitmap bitmap) {
+        try {
+            sInBitmapField.set(opts, bitmap);
+            // only mutable Bitmaps can be reused
+            sInMutableField.setBoolean(opts, true);
+        } catch (IllegalAccessException e) {
+            // cannot happen: public fields
+        }
+    }
+
+    private static Bitmap take(Long key, int size) {
+        ArrayList<Bitmap> bucket = sBuckets.get(key);
+        if (bucket == null) {
+            return null;
+        }
+        for (int i = bucket.size() - 1; i >= 0; i--) {
+            Bitmap bitmap = bucket.get(i);
+            int bitmapSize = sPooled.get(bitmap);
+            if (bitmapSize >= size) {
+                bucket.remove(i);
+                sPooled.remove(bitmap);
+                sSize -= bitmapSize;
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The bucket of a Bitmap: its exact dimensions and config
+     * before API 19, the power of 2 of its size since
+     */
+    private static Long key(int width, int height, Bitmap.Config config, int size) {
+        if (REUSE_ANY_SIZE) {
+            return (long) (32 - Integer.numberOfLeadingZeros(size - 1));
+        }
+        return ((long) width << 32) | ((long) height << 8) | (config != null? config.ordinal() : 0xff);
+    }
+
+    /**
+     * @return The size of the Bitmap's memory, since API 19 it can be
+     * larger than its pixels after a reuse for a smaller image
+     */
+    private static int getByteSize(Bitmap bitmap) {
+        if (sGetAllocationByteCount != null) {
+            try {
+                return (Integer) sGetAllocationByteCount.invoke(bitmap);
+            } catch (Exception e) {
+                // fall through
+            }
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Bitmap, Integer>> iter = sPooled.entrySet().iterator();
+        while (sSize > maxSize && iter.hasNext()) {
+            Map.Entry<Bitmap, Integer> entry = iter.next();
+            iter.remove();
+            Bitmap bitmap = entry.getKey();
+            int size = entry.getValue();
+            Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig(), size);
+            ArrayList<Bitmap> bucket = sBuckets.get(key);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+            }
+            sSize -= size;
+            sEvictionCount++;
+            bitmap.recycle();
+        }
+    }
+}
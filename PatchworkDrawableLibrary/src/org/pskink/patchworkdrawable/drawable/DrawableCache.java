@@ -0,0 +1,183 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.Drawable.ConstantState;
+
+/**
+ * Process wide LRU cache of the Drawables' ConstantStates shared by all
+ * {@link PatchworkDrawable}s, so the same resource is decoded only once.
+ *
+ * The entries are keyed by resource id, density and variant (e.g. the
+ * sample size of a downsampled Bitmap), the size of an entry
+ * is the byte size of its Bitmap (or {@link #NON_BITMAP_SIZE} for other
+ * Drawables). Evicted entries are just dropped, their Bitmaps are not
+ * recycled as they may still be in use (the ones decoded for the layers
+ * go to the {@link BitmapPool} once not used by any layer).
+ */
+public class DrawableCache {
+    /**
+     * Nominal size of a cached Drawable that is not a BitmapDrawable
+     */
+    public final static int NON_BITMAP_SIZE = 1024;
+
+    private final static int DEFAULT_MAX_SIZE = 8 * 1024 * 1024;
+
+    private static LinkedHashMap<Long, Entry> sEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private static int sMaxSize = DEFAULT_MAX_SIZE;
+    private static int sSize;
+    private static int sHitCount;
+    private static int sMissCount;
+    private static int sEvictionCount;
+
+    private static class Entry {
+        ConstantState state;
+        Bitmap bitmap;
+        int size;
+    }
+
+    private DrawableCache() {
+    }
+
+    /**
+     * Sets the maximum size of the cache, evicting entries if needed
+     * @param maxSize The maximum size in bytes, 0 disables the cache
+     */
+    public static synchronized void setMaxSize(int maxSize) {
+        sMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * @return The maximum size of the cache in bytes
+     */
+    public static synchronized int getMaxSize() {
+        return sMaxSize;
+    }
+
+    /**
+     * @return The current size of the cache in bytes
+     */
+    public static synchronized int getSize() {
+        return sSize;
+    }
+
+    /**
+     * @return Number of Drawables found in the cache
+     */
+    public static synchronized int getHitCount() {
+        return sHitCount;
+    }
+
+    /**
+     * @return Number of Drawables not found in the cache
+     */
+    public static synchronized int getMissCount() {
+        return sMissCount;
+    }
+
+    /**
+     * @return Number of entries evicted from the cache
+     */
+    public static synchronized int getEvictionCount() {
+        return sEvictionCount;
+    }
+
+    /**
+     * Removes all entries
+     */
+    public static synchronized void clear() {
+        for (Entry entry : sEntries.values()) {
+            BitmapPool.release(entry.bitmap);
+        }
+        sEntries.clear();
+        sSize = 0;
+    }
+
+    private static long key(int id, int density, int variant) {
+        return ((long) variant << 48) | ((long) (density & 0xffff) << 32) | (id & 0xffffffffL);
+    }
+
+    /**
+     * @return The cached ConstantState or null if none, see 
+     * {@link #get(int, int, int)}
+     */
+    static ConstantState get(int id, int density) {
+        return get(id, density, 0);
+    }
+
+    /**
+     * @param variant Variant of the resource (0..0x7fff), 0 is the resource
+     * decoded as usual
+     * @return The cached ConstantState or null if none. Its Bitmap, if 
+     * managed by the {@link BitmapPool}, is acquired for the caller while
+     * the cache is locked, so it cannot be pooled by a concurrent eviction;
+     * the caller releases it when done.
+     */
+    static synchronized ConstantState get(int id, int density, int variant) {
+        Entry entry = sEntries.get(key(id, density, variant));
+        if (entry == null) {
+            sMissCount++;
+            return null;
+        }
+        sHitCount++;
+        BitmapPool.acquire(entry.bitmap);
+        return entry.state;
+    }
+
+    /**
+     * Caches the ConstantState of given Drawable (if it has any)
+     */
+    static void put(int id, int density, Drawable d) {
+        put(id, density, 0, d);
+    }
+
+    /**
+     * Caches the ConstantState of given variant of the Drawable (if it has any)
+     */
+    static synchronized void put(int id, int density, int variant, Drawable d) {
+        ConstantState state = d.getConstantState();
+        if (state == null) {
+            return;
+        }
+        int size = NON_BITMAP_SIZE;
+        Bitmap b = null;
+        if (d instanceof BitmapDrawable) {
+            b = ((BitmapDrawable) d).getBitmap();
+            if (b != null) {
+                size = b.getRowBytes() * b.getHeight();
+            }
+        }
+        if (size > sMaxSize) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.state = state;
+        entry.bitmap = b;
+        entry.size = size;
+        BitmapPool.acquire(b);
+        Entry old = sEntries.put(key(id, density, variant), entry);
+        if (old != null) {
+            sSize -= old.size;
+            BitmapPool.release(old.bitmap);
+        }
+        sSize += size;
+        trimToSize(sMaxSize);
+    }
+
+    private static void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Long, Entry>> iter = sEntries.entrySet().iterator();
+        while (sSize > maxSize && iter.hasNext()) {
+            Entry entry = iter.next().getValue();
+            iter.remove();
+            sSize -= entry.size;
+            sEvictionCount++;
+            BitmapPool.release(entry.bitmap);
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Process wide LRU cache of the 1-bit alpha masks used by the layers
+ * with the alpha hit testing enabled, see
+ * {@link PatchworkDrawable.Layer#setAlphaHitTest(boolean)}.
+ *
+ * A mask is built lazily the first time a point hits the bounds of such a
+ * layer: the Drawable is drawn into a temporary ALPHA_8 Bitmap, downsampled
+ * so its longer side is at most {@link #getMaxMaskDimension()} pixels, and
+ * every pixel which alpha exceeds the threshold becomes one bit.
+ * The masks are keyed by the Bitmap of a BitmapDrawable (or the Bitmap and
+ * the frame of an {@link AtlasDrawable}) and the size of the Drawable, so
+ * all the layers showing the same image at the same size share one mask.
+ * Other Drawables are keyed by themselves, their state and level. The keys
+ * are weak: the masks of the Bitmaps no longer used are dropped. The size
+ * of an entry is the byte size of its bits.
+ */
+public class HitMaskCache {
+    private final static int DEFAULT_MAX_SIZE = 256 * 1024;
+    private final static int DEFAULT_MAX_MASK_DIMENSION = 128;
+    private final static int DEFAULT_ALPHA_THRESHOLD = 16;
+
+    private static LinkedHashMap<Key, Mask> sMasks = new LinkedHashMap<Key, Mask>(16, 0.75f, true);
+    private static int sMaxSize = DEFAULT_MAX_SIZE;
+    private static int sMaxMaskDimension = DEFAULT_MAX_MASK_DIMENSION;
+    private static int sAlphaThreshold = DEFAULT_ALPHA_THRESHOLD;
+    private static int sSize;
+    private static int sHitCount;
+    private static int sMissCount;
+    private static int sEvictionCount;
+    private static Key sProbe = new Key();
+    private static Paint sPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private static class Key {
+        // the probe refers to the source directly, the stored keys weakly
+        Object source;
+        WeakReference<Object> sourceRef;
+        int sourceHash;
+        Object frame;
+        int state;
+        int level;
+        int width;
+        int height;
+
+        Object getSource() {
+            return sourceRef != null? sourceRef.get() : source;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = sourceHash;
+            h = h * 31 + System.identityHashCode(frame);
+            h = h * 31 + state;
+            h = h * 31 + level;
+            h = h * 31 + width;
+            return h * 31 + height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            Object source = getSource();
+            return source != null && source == k.getSource() && frame == k.frame && state == k.state &&
+                    level == k.level && width == k.width && height == k.height;
+        }
+    }
+
+    private static class Mask {
+        int width;
+        int height;
+        int[] bits;
+
+        int size() {
+            return bits.length * 4;
+        }
+    }
+
+    private HitMaskCache() {
+    }
+
+    /**
+     * Sets the maximum size of the cache, evicting masks if needed
+     * @param maxSize The maximum size in bytes
+     */
+    public static synchronized void setMaxSize(int maxSize) {
+        sMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * @return The maximum size of the cache in bytes
+     */
+    public static synchronized int getMaxSize() {
+        return sMaxSize;
+    }
+
+    /**
+     * @return The current size of the cache in bytes
+     */
+    public static synchronized int getSize() {
+        return sSize;
+    }
+
+    /**
+     * @return Number of cached masks
+     */
+    public static synchronized int getMaskCount() {
+        return sMasks.size();
+    }
+
+    /**
+     * @return Number of hit tests done with a cached mask
+     */
+    public static synchronized int getHitCount() {
+        return sHitCount;
+    }
+
+    /**
+     * @return Number of masks built
+     */
+    public static synchronized int getMissCount() {
+        return sMissCount;
+    }
+
+    /**
+     * @return Number of masks evicted from the cache
+     */
+    public static synchronized int getEvictionCount() {
+        return sEvictionCount;
+    }
+
+    /**
+     * Sets the maximum width and height of a mask, bigger Drawables are
+     * downsampled. Removes all masks.
+     * @param maxMaskDimension The maximum dimension in pixels
+     */
+    public static synchronized void setMaxMaskDimension(int maxMaskDimension) {
+        sMaxMaskDimension = Math.max(1, maxMaskDimension);
+        clear();
+    }
+
+    /**
+     * @return The maximum width and height of a mask
+     */
+    public static synchronized int getMaxMaskDimension() {
+        return sMaxMaskDimension;
+    }
+
+    /**
+     * Sets the alpha a pixel has to exceed to be hit. Removes all masks.
+     * @param threshold The alpha threshold (0..254)
+     */
+    public static synchronized void setAlphaThreshold(int threshold) {
+        sAlphaThreshold = threshold;
+        clear();
+    }
+
+    /**
+     * Removes the mask of given Drawable, call it when the Drawable's
+     * content changes in a way not reflected by its state or level
+     */
+    public static synchronized void remove(Drawable d) {
+        Mask mask = sMasks.remove(setKey(sProbe, d));
+        if (mask != null) {
+            sSize -= mask.size();
+        }
+        sProbe.source = null;
+        sProbe.frame = null;
+    }
+
+    /**
+     * Removes the masks built from given Bitmap (of BitmapDrawables and 
+     * atlas frames), call it before the Bitmap is reused for another image
+     */
+    public static synchronized void remove(Bitmap bitmap) {
+        Iterator<Map.Entry<Key, Mask>> iter = sMasks.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Key, Mask> entry = iter.next();
+            if (entry.getKey().getSource() == bitmap) {
+                iter.remove();
+                sSize -= entry.getValue().size();
+            }
+        }
+    }
+
+    /**
+     * Removes all masks
+     */
+    public static synchronized void clear() {
+        sMasks.clear();
+        sSize = 0;
+    }
+
+    /**
+     * Tests if point (x, y) in the Drawable's coordinates hits its non
+     * transparent pixels, the point is assumed to be within its bounds
+     */
+    static synchronized boolean hit(Drawable d, float x, float y) {
+        Rect bounds = d.getBounds();
+        Key probe = setKey(sProbe, d);
+        Mask mask = sMasks.get(probe);
+        if (mask == null) {
+            sMissCount++;
+            Key key = new Key();
+            setKey(key, d);
+            key.sourceRef = new WeakReference<Object>(key.source);
+            key.source = null;
+            mask = build(d, bounds);
+            if (mask.size() <= sMaxSize) {
+                purge();
+                sMasks.put(key, mask);
+                sSize += mask.size();
+                trimToSize(sMaxSize);
+            }
+        } else {
+            sHitCount++;
+        }
+        probe.source = null;
+        probe.frame = null;
+        int width = bounds.width();
+        int height = bounds.height();
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        int mx = (int) ((x - bounds.left) * mask.width / width);
+        int my = (int) ((y - bounds.top) * mask.height / height);
+        mx = Math.max(0, Math.min(mask.width - 1, mx));
+        my = Math.max(0, Math.min(mask.height - 1, my));
+        int bit = my * mask.width + mx;
+        return (mask.bits[bit >> 5] & (1 << (bit & 31))) != 0;
+    }
+
+    private static Key setKey(Key key, Drawable d) {
+        Rect bounds = d.getBounds();
+        if (d instanceof AtlasDrawable) {
+            AtlasDrawable sprite = (AtlasDrawable) d;
+            key.source = sprite.getAtlas().getBitmap();
+            key.frame = sprite.getSrc();
+            key.state = 0;
+            key.level = 0;
+        } else
+        if (d instanceof BitmapDrawable && ((BitmapDrawable) d).getBitmap() != null) {
+            // every layer's Drawable is mutated so its ConstantState is not shared
+            key.source = ((BitmapDrawable) d).getBitmap();
+            key.frame = null;
+            key.state = 0;
+            key.level = 0;
+        } else {
+            key.source = d;
+            key.frame = null;
+            key.state = Arrays.hashCode(d.getState());
+            key.level = d.getLevel();
+        }
+        key.sourceHash = System.identityHashCode(key.source);
+        key.width = bounds.width();
+        key.height = bounds.height();
+        return key;
+    }
+
+    /**
+     * Removes the masks which sources are gone
+     */
+    private static void purge() {
+        Iterator<Map.Entry<Key, Mask>> iter = sMasks.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Key, Mask> entry = iter.next();
+            if (entry.getKey().getSource() == null) {
+                iter.remove();
+                sSize -= entry.getValue().size();
+            }
+        }
+    }
+
+    /**
+     * Draws the Drawable into a downsampled ALPHA_8 Bitmap and packs its
+     * pixels into bits
+     */
+    private static Mask build(Drawable d, Rect bounds) {
+        int width = Math.max(1, bounds.width());
+        int height = Math.max(1, bounds.height());
+        float scale = Math.min(1, (float) sMaxMaskDimension / Math.max(width, height));
+        Mask mask = new Mask();
+        mask.width = Math.max(1, Math.round(width * scale));
+        mask.height = Math.max(1, Math.round(height * scale));
+        mask.bits = new int[(mask.width * mask.height + 31) >> 5];
+
+        Bitmap bitmap = Bitmap.createBitmap(mask.width, mask.height, Bitmap.Config.ALPHA_8);
+        Canvas canvas = new Canvas(bitmap);
+        canvas.scale((float) mask.width / width, (float) mask.height / height);
+        canvas.translate(-bounds.left, -bounds.top);
+        if (d instanceof AtlasDrawable) {
+            AtlasDrawable sprite = (AtlasDrawable) d;
+            canvas.drawBitmap(sprite.getAtlas().getBitmap(), sprite.getSrc(), bounds, sPaint);
+        } else {
+            // the layer's alpha is set again before the Drawable is drawn
+            d.setAlpha(255);
+            d.draw(canvas);
+        }
+        int rowBytes = bitmap.getRowBytes();
+        byte[] pixels = new byte[rowBytes * mask.height];
+        bitmap.copyPixelsToBuffer(ByteBuffer.wrap(pixels));
+        bitmap.recycle();
+
+        int threshold = sAlphaThreshold;
+        int[] bits = mask.bits;
+        int bit = 0;
+        for (int y = 0; y < mask.height; y++) {
+            int row = y * rowBytes;
+            for (int x = 0; x < mask.width; x++, bit++) {
+                if ((pixels[row + x] & 0xff) > threshold) {
+                    bits[bit >> 5] |= 1 << (bit & 31);
+                }
+            }
+        }
+        return mask;
+    }
+
+    private static void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Key, Mask>> iter = sMasks.entrySet().iterator();
+        while (sSize > maxSize && iter.hasNext()) {
+            Mask mask = iter.next().getValue();
+            iter.remove();
+            sSize -= mask.size();
+            sEvictionCount++;
+        }
+    }
+}
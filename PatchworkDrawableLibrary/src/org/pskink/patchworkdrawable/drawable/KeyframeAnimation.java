@@ -0,0 +1,264 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import android.graphics.Matrix;
+import android.view.animation.Animation;
+import android.view.animation.LinearInterpolator;
+import android.view.animation.Transformation;
+
+/**
+ * Lightweight animation made of keyframes of the translation, scale,
+ * rotation and alpha.
+ *
+ * Every property has its own track of keyframes stored in primitive arrays,
+ * the pivot of the scale and rotation is fixed. Started on layers with
+ * {@link PatchworkDrawable.Layer#startKeyframeAnimation(KeyframeAnimation)}
+ * one instance can be shared by any number of layers: all of them are
+ * evaluated in a single pass at the beginning of every frame, without
+ * allocating anything and without the {@link Transformation} of a regular
+ * Animation. The repeat count, repeat mode and start offset of the
+ * Animation are honored, the interpolator is not (use the easing of the
+ * keyframes instead).
+ *
+ * It is a regular Animation as well so it can also be started with
+ * {@link PatchworkDrawable.Layer#startLayerAnimation(Animation)} or on a View.
+ */
+public class KeyframeAnimation extends Animation {
+    public final static int TRANSLATE_X = 0;
+    public final static int TRANSLATE_Y = 1;
+    public final static int SCALE_X = 2;
+    public final static int SCALE_Y = 3;
+    /**
+     * Rotation in degrees
+     */
+    public final static int ROTATE = 4;
+    /**
+     * Alpha (0..1)
+     */
+    public final static int ALPHA = 5;
+    private final static int NUM_PROPERTIES = 6;
+    private final static float[] DEFAULTS = {
+            0, 0, 1, 1, 0, 1,
+    };
+
+    /**
+     * Size of the array the evaluated frame is written to: 9 matrix
+     * values followed by the alpha
+     */
+    final static int FRAME_SIZE = 10;
+    final static int FRAME_ALPHA = 9;
+
+    public final static int LINEAR = 0;
+    public final static int EASE_IN = 1;
+    public final static int EASE_OUT = 2;
+    public final static int EASE_IN_OUT = 3;
+    /**
+     * The previous value is held until the keyframe time
+     */
+    public final static int STEP = 4;
+
+    private long[][] mTimes = new long[NUM_PROPERTIES][];
+    private float[][] mValues = new float[NUM_PROPERTIES][];
+    private int[][] mEasings = new int[NUM_PROPERTIES][];
+    private int[] mCounts = new int[NUM_PROPERTIES];
+    private float mPivotX;
+    private float mPivotY;
+    private float[] mFrame = new float[FRAME_SIZE];
+
+    public KeyframeAnimation() {
+        setInterpolator(new LinearInterpolator());
+    }
+
+    /**
+     * Sets the pivot point of the scale and rotation
+     * @param px The X coordinate of the pivot point, in the layer's coordinates
+     * @param py The Y coordinate of the pivot point, in the layer's coordinates
+     */
+    public void setPivot(float px, float py) {
+        mPivotX = px;
+        mPivotY = py;
+    }
+
+    /**
+     * Adds a keyframe interpolated linearly from the previous one
+     * @see #addKeyframe(int, long, float, int)
+     */
+    public void addKeyframe(int property, long time, float value) {
+        addKeyframe(property, time, value, LINEAR);
+    }
+
+    /**
+     * Adds a keyframe, the duration of the animation is extended to the
+     * time of the last keyframe. A keyframe replaces the one of the same
+     * property at the same time.
+     * @param property One of {@link #TRANSLATE_X}, {@link #TRANSLATE_Y},
+     * {@link #SCALE_X}, {@link #SCALE_Y}, {@link #ROTATE}, {@link #ALPHA}
+     * @param time Time of the keyframe in milliseconds
+     * @param value Value of the property
+     * @param easing The easing used from the previous keyframe to this one:
+     * {@link #LINEAR}, {@link #EASE_IN}, {@link #EASE_OUT},
+     * {@link #EASE_IN_OUT} or {@link #STEP}
+     */
+    public void addKeyframe(int property, long time, float value, int easing) {
+        if (property < 0 || property >= NUM_PROPERTIES) {
+            throw new IllegalArgumentException("unknown property " + property);
+        }
+        if (time < 0) {
+            throw new IllegalArgumentException("negative time " + time);
+        }
+        int count = mCounts[property];
+        long[] times = mTimes[property];
+        if (times == null || count == times.length) {
+            int capacity = count == 0? 4 : count * 2;
+            long[] newTimes = new long[capacity];
+            float[] newValues = new float[capacity];
+            int[] newEasings = new int[capacity];
+            if (count > 0) {
+                System.arraycopy(times, 0, newTimes, 0, count);
+                System.arraycopy(mValues[property], 0, newValues, 0, count);
+                System.arraycopy(mEasings[property], 0, newEasings, 0, count);
+            }
+            mTimes[property] = times = newTimes;
+            mValues[property] = newValues;
+            mEasings[property] = newEasings;
+        }
+        float[] values = mValues[property];
+        int[] easings = mEasings[property];
+        // keep the track sorted by time
+        int idx = count;
+        while (idx > 0 && times[idx - 1] > time) {
+            idx--;
+        }
+        if (idx > 0 && times[idx - 1] == time) {
+            values[idx - 1] = value;
+            easings[idx - 1] = easing;
+            return;
+        }
+        System.arraycopy(times, idx, times, idx + 1, count - idx);
+        System.arraycopy(values, idx, values, idx + 1, count - idx);
+        System.arraycopy(easings, idx, easings, idx + 1, count - idx);
+        times[idx] = time;
+        values[idx] = value;
+        easings[idx] = easing;
+        mCounts[property] = count + 1;
+        if (time > getDuration()) {
+            setDuration(time);
+        }
+    }
+
+    /**
+     * Evaluates the animation
+     * @param time Time elapsed since the start in milliseconds
+     * @param out Where the frame is written, see {@link #FRAME_SIZE}
+     * @return false if the animation has ended
+     */
+    boolean evaluate(long time, float[] out) {
+        time -= getStartOffset();
+        long duration = getDuration();
+        long t;
+        if (time <= 0 || duration <= 0) {
+            if (duration <= 0 && time > 0) {
+                return false;
+            }
+            t = 0;
+        } else {
+            long iteration = time / duration;
+            int repeatCount = getRepeatCount();
+            if (repeatCount != INFINITE && iteration > repeatCount) {
+                return false;
+            }
+            t = time % duration;
+            if (getRepeatMode() == REVERSE && (iteration & 1) == 1) {
+                t = duration - t;
+            }
+        }
+        compose(t, out);
+        return true;
+    }
+
+    /**
+     * Computes the frame at given time: translate * rotate * scale,
+     * the rotation and scale around the pivot point
+     */
+    private void compose(long t, float[] out) {
+        float tx = sample(TRANSLATE_X, t);
+        float ty = sample(TRANSLATE_Y, t);
+        float sx = sample(SCALE_X, t);
+        float sy = sample(SCALE_Y, t);
+        float degrees = sample(ROTATE, t);
+        float cos = 1;
+        float sin = 0;
+        if (degrees != 0) {
+            double radians = Math.toRadians(degrees);
+            cos = (float) Math.cos(radians);
+            sin = (float) Math.sin(radians);
+        }
+        float a = cos * sx;
+        float b = -sin * sy;
+        float c = sin * sx;
+        float d = cos * sy;
+        float px = mPivotX;
+        float py = mPivotY;
+        out[Matrix.MSCALE_X] = a;
+        out[Matrix.MSKEW_X] = b;
+        out[Matrix.MTRANS_X] = px + tx - a * px - b * py;
+        out[Matrix.MSKEW_Y] = c;
+        out[Matrix.MSCALE_Y] = d;
+        out[Matrix.MTRANS_Y] = py + ty - c * px - d * py;
+        out[Matrix.MPERSP_0] = 0;
+        out[Matrix.MPERSP_1] = 0;
+        out[Matrix.MPERSP_2] = 1;
+        out[FRAME_ALPHA] = sample(ALPHA, t);
+    }
+
+    private float sample(int property, long t) {
+        int count = mCounts[property];
+        if (count == 0) {
+            return DEFAULTS[property];
+        }
+        long[] times = mTimes[property];
+        float[] values = mValues[property];
+        if (t <= times[0]) {
+            return values[0];
+        }
+        if (t >= times[count - 1]) {
+            return values[count - 1];
+        }
+        // the first keyframe after t
+        int lo = 1;
+        int hi = count - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= t) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        float f = (float) (t - times[lo - 1]) / (times[lo] - times[lo - 1]);
+        f = ease(mEasings[property][lo], f);
+        return values[lo - 1] + (values[lo] - values[lo - 1]) * f;
+    }
+
+    private static float ease(int easing, float f) {
+        switch (easing) {
+            case EASE_IN:
+                return f * f;
+            case EASE_OUT:
+                return f * (2 - f);
+            case EASE_IN_OUT:
+                return f < 0.5f? 2 * f * f : 1 - 2 * (1 - f) * (1 - f);
+            case STEP:
+                return 0;
+            default:
+                return f;
+        }
+    }
+
+    @Override
+    protected void applyTransformation(float interpolatedTime, Transformation t) {
+        float[] frame = mFrame;
+        compose((long) (interpolatedTime * getDuration()), frame);
+        t.getMatrix().setValues(frame);
+        t.setAlpha(frame[FRAME_ALPHA]);
+    }
+}
@@ -0,0 +1,170 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.pskink.patchworkdrawable.drawable.PatchworkDrawable.Layer;
+
+import android.graphics.Matrix;
+
+/**
+ * Lock free transfer of the layer states (matrix, alpha and visibility)
+ * from a worker thread to a {@link PatchworkDrawable}, see
+ * {@link PatchworkDrawable#createLayerStateBuffer(Layer...)}.
+ *
+ * The worker thread changes the states with the setters and then calls
+ * {@link #publish()}, which makes the complete set of states visible to
+ * the PatchworkDrawable at once. The next frame drawn picks up the latest
+ * published snapshot, the ones published in the meantime are skipped.
+ * Neither side ever blocks: the snapshots are triple buffered and swapped
+ * with an {@link AtomicReference}.
+ *
+ * The setters and {@link #publish()} have to be called from a single
+ * thread at a time.
+ */
+public class LayerStateBuffer {
+    private PatchworkDrawable mDrawable;
+    private Layer[] mLayers;
+    // the writer's complete state
+    private float[] mMatrices;
+    private int[] mAlphas;
+    private boolean[] mVisible;
+    private int[] mVersions;
+    private float[] mValues = new float[9];
+    private Snapshot mBack;
+    private AtomicReference<Snapshot> mShared;
+    // the reader's state, used on the main thread only
+    private Snapshot mFront;
+    private int[] mAppliedVersions;
+
+    static class Snapshot {
+        float[] matrices;
+        int[] alphas;
+        boolean[] visible;
+        int[] versions;
+        // written before the snapshot is shared, read after it is taken
+        boolean fresh;
+
+        Snapshot(int size) {
+            matrices = new float[size * 9];
+            alphas = new int[size];
+            visible = new boolean[size];
+            versions = new int[size];
+        }
+    }
+
+    LayerStateBuffer(PatchworkDrawable drawable, Layer[] layers, float[] matrices, int[] alphas, boolean[] visible) {
+        int size = layers.length;
+        mDrawable = drawable;
+        mLayers = layers;
+        mMatrices = matrices;
+        mAlphas = alphas;
+        mVisible = visible;
+        mVersions = new int[size];
+        mAppliedVersions = new int[size];
+        mBack = new Snapshot(size);
+        mShared = new AtomicReference<Snapshot>(new Snapshot(size));
+        mFront = new Snapshot(size);
+    }
+
+    /**
+     * @return Number of the layers (slots) of this buffer
+     */
+    public int getSize() {
+        return mLayers.length;
+    }
+
+    /**
+     * Sets the matrix of a layer
+     * @param slot Index of the layer in the array passed to
+     * {@link PatchworkDrawable#createLayerStateBuffer(Layer...)}
+     * @param m The matrix, its values are copied
+     */
+    public void setMatrix(int slot, Matrix m) {
+        m.getValues(mValues);
+        System.arraycopy(mValues, 0, mMatrices, slot * 9, 9);
+        mVersions[slot]++;
+    }
+
+    /**
+     * Sets the translation of a layer, the rest of its matrix is reset
+     * @param slot Index of the layer
+     * @param dx The X translation
+     * @param dy The Y translation
+     */
+    public void setTranslate(int slot, float dx, float dy) {
+        float[] matrices = mMatrices;
+        int offset = slot * 9;
+        matrices[offset + Matrix.MSCALE_X] = 1;
+        matrices[offset + Matrix.MSKEW_X] = 0;
+        matrices[offset + Matrix.MTRANS_X] = dx;
+        matrices[offset + Matrix.MSKEW_Y] = 0;
+        matrices[offset + Matrix.MSCALE_Y] = 1;
+        matrices[offset + Matrix.MTRANS_Y] = dy;
+        matrices[offset + Matrix.MPERSP_0] = 0;
+        matrices[offset + Matrix.MPERSP_1] = 0;
+        matrices[offset + Matrix.MPERSP_2] = 1;
+        mVersions[slot]++;
+    }
+
+    /**
+     * Sets the alpha of a layer
+     * @param slot Index of the layer
+     * @param alpha The alpha (0..255)
+     */
+    public void setAlpha(int slot, int alpha) {
+        mAlphas[slot] = alpha;
+        mVersions[slot]++;
+    }
+
+    /**
+     * Shows or hides a layer
+     * @param slot Index of the layer
+     * @param visible true to show the layer
+     */
+    public void setVisible(int slot, boolean visible) {
+        mVisible[slot] = visible;
+        mVersions[slot]++;
+    }
+
+    /**
+     * Makes the states set so far visible to the PatchworkDrawable and
+     * requests a new frame
+     */
+    public void publish() {
+        Snapshot back = mBack;
+        int size = mLayers.length;
+        System.arraycopy(mMatrices, 0, back.matrices, 0, size * 9);
+        System.arraycopy(mAlphas, 0, back.alphas, 0, size);
+        System.arraycopy(mVisible, 0, back.visible, 0, size);
+        System.arraycopy(mVersions, 0, back.versions, 0, size);
+        back.fresh = true;
+        mBack = mShared.getAndSet(back);
+        mDrawable.onLayerStatesPublished();
+    }
+
+    /**
+     * Takes the latest published snapshot, main thread only
+     * @return The snapshot or null if nothing has been published since
+     * the last call
+     */
+    Snapshot take() {
+        if (!mShared.get().fresh) {
+            return null;
+        }
+        Snapshot snapshot = mShared.getAndSet(mFront);
+        snapshot.fresh = false;
+        mFront = snapshot;
+        return snapshot;
+    }
+
+    Layer[] getLayers() {
+        return mLayers;
+    }
+
+    /**
+     * @return The versions of the states already applied to the layers
+     */
+    int[] getAppliedVersions() {
+        return mAppliedVersions;
+    }
+}
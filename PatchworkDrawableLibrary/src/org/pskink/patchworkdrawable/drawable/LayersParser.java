@@ -0,0 +1,365 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.io.IOException;
+
+import org.pskink.patchworkdrawable.R;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.content.res.XmlResourceParser;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.util.Xml;
+
+/**
+ * Parser of the layers xml files, see {@link PatchworkDrawable#addLayers(int)},
+ * and the atlas xml files, see {@link PatchworkDrawable#loadAtlas(int)}
+ */
+class LayersParser {
+
+    /**
+     * Description of a single &lt;layer&gt;
+     */
+    static class LayerInfo {
+        String name;
+        int id;
+        int drawableId;
+        Matrix matrix;
+        Rect bounds;
+        GroupInfo group;
+    }
+
+    /**
+     * Description of a single &lt;group&gt;
+     */
+    static class GroupInfo {
+        String name;
+        float alpha = 1;
+        Matrix matrix;
+        GroupInfo parent;
+        // the object the Handler created for this group
+        Object target;
+        boolean reported;
+    }
+
+    interface Handler {
+        /**
+         * Called before the first child of the group (or at its end if
+         * the group is empty), the parent groups are reported first
+         */
+        void onGroup(GroupInfo info) throws IOException;
+
+        void onLayer(LayerInfo info) throws IOException;
+    }
+
+    // sorted by the attribute value
+    private final static int[] LAYER_ATTRS = {
+            android.R.attr.name,
+            android.R.attr.id,
+            android.R.attr.drawable,
+    };
+    private final static int NAME = 0;
+    private final static int ID = 1;
+    private final static int DRAWABLE = 2;
+
+    private final static int[] GROUP_ATTRS = {
+            R.attr.alpha,
+    };
+    private final static int ALPHA = 0;
+
+    private final static int[] INNER_ATTRS = {
+            R.attr.dx,      // idx 0
+            R.attr.dy,      // idx 1
+            R.attr.sx,      // idx 2
+            R.attr.sy,      // idx 3
+            R.attr.kx,      // idx 4
+            R.attr.ky,      // idx 5
+            R.attr.degrees, // idx 6
+            R.attr.px,      // idx 7
+            R.attr.py,      // idx 8
+            R.attr.left,    // idx 9
+            R.attr.top,     // idx 10
+            R.attr.right,   // idx 11
+            R.attr.bottom,  // idx 12
+            R.attr.width,   // idx 13
+            R.attr.height,  // idx 14
+    };
+    private final static int DX = 0;
+    private final static int DY = 1;
+    private final static int SX = 2;
+    private final static int SY = 3;
+    private final static int KX = 4;
+    private final static int KY = 5;
+    private final static int DEGREES = 6;
+    private final static int PX = 7;
+    private final static int PY = 8;
+    private final static int LEFT = 9;
+    private final static int TOP = 10;
+    private final static int RIGHT = 11;
+    private final static int BOTTOM = 12;
+    private final static int WIDTH = 13;
+    private final static int HEIGHT = 14;
+
+    /**
+     * Parses the layers xml file
+     * @param res Resources used to obtain the xml file
+     * @param id Id of the xml file
+     * @param handler Called for every &lt;group&gt; and &lt;layer&gt; found
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    static void parse(Resources res, int id, Handler handler) throws XmlPullParserException, IOException {
+        XmlResourceParser parser = res.getXml(id);
+        try {
+            parse(res, parser, handler);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void parse(Resources res, XmlResourceParser parser, Handler handler) throws XmlPullParserException, IOException {
+        AttributeSet attrset = Xml.asAttributeSet(parser);
+        int type;
+
+        while ((type=parser.next()) != XmlPullParser.START_TAG &&
+                type != XmlPullParser.END_DOCUMENT) {
+            // Empty loop
+        }
+        if (type != XmlPullParser.START_TAG) {
+            throw new XmlPullParserException("No start tag found");
+        }
+        String name = parser.getName();
+        if (!name.equals("layers")) {
+            throw new XmlPullParserException("No <layers> start tag found");
+        }
+        parseChildren(res, parser, attrset, handler, null);
+    }
+
+    /**
+     * Parses the children of &lt;layers&gt; or &lt;group&gt; tag
+     * @param group The group being parsed or null for &lt;layers&gt;
+     */
+    private static void parseChildren(Resources res, XmlResourceParser parser, AttributeSet attrset, 
+            Handler handler, GroupInfo group) throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        int type;
+        while ((type=parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+                break;
+            }
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            String name = parser.getName();
+            if (name.equals("layer")) {
+                TypedArray a = res.obtainAttributes(attrset, LAYER_ATTRS);
+                LayerInfo info = new LayerInfo();
+                info.name = a.getString(NAME);
+                info.id = a.getResourceId(ID, 0);
+                info.drawableId = a.getResourceId(DRAWABLE, 0);
+                a.recycle();
+
+                if (info.drawableId == 0) {
+                    String msg = parser.getPositionDescription() + "no android:drawable attribute found";
+                    throw new XmlPullParserException(msg);
+                }
+                info.group = group;
+                parseInner(res, parser, attrset, info);
+                report(handler, group);
+                handler.onLayer(info);
+            } else
+            if (name.equals("group")) {
+                GroupInfo info = new GroupInfo();
+                TypedArray a = res.obtainAttributes(attrset, LAYER_ATTRS);
+                info.name = a.getString(NAME);
+                a.recycle();
+                a = res.obtainAttributes(attrset, GROUP_ATTRS);
+                info.alpha = a.getFloat(ALPHA, 1);
+                a.recycle();
+                info.parent = group;
+                parseChildren(res, parser, attrset, handler, info);
+                report(handler, info);
+            } else
+            if (name.equals("matrix") && group != null) {
+                if (group.reported) {
+                    String msg = parser.getPositionDescription() + ": <matrix> has to precede the children of <group>";
+                    throw new XmlPullParserException(msg);
+                }
+                Matrix m = parseMatrix(res, parser, attrset);
+                if (!m.isIdentity()) {
+                    group.matrix = m;
+                }
+            } else {
+                throw new XmlPullParserException("tag <layer> or <group> expected, found <" + name + "> instead");
+            }
+        }
+    }
+
+    /**
+     * Calls {@link Handler#onGroup(GroupInfo)} for the group and its 
+     * parents if not done yet
+     */
+    private static void report(Handler handler, GroupInfo group) throws IOException {
+        if (group == null || group.reported) {
+            return;
+        }
+        report(handler, group.parent);
+        group.reported = true;
+        handler.onGroup(group);
+    }
+
+    /**
+     * Parses the atlas xml file
+     * @param res Resources used to obtain the xml file and the sprite sheet
+     * @param id Id of the xml file
+     * @return A new Atlas
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    static Atlas parseAtlas(Resources res, int id) throws XmlPullParserException, IOException {
+        XmlResourceParser parser = res.getXml(id);
+        try {
+            AttributeSet attrset = Xml.asAttributeSet(parser);
+            int type;
+
+            while ((type=parser.next()) != XmlPullParser.START_TAG &&
+                    type != XmlPullParser.END_DOCUMENT) {
+                // Empty loop
+            }
+            if (type != XmlPullParser.START_TAG || !parser.getName().equals("atlas")) {
+                throw new XmlPullParserException("No <atlas> start tag found");
+            }
+            TypedArray a = res.obtainAttributes(attrset, LAYER_ATTRS);
+            int drawableId = a.getResourceId(DRAWABLE, 0);
+            a.recycle();
+            Drawable d = drawableId != 0? res.getDrawable(drawableId) : null;
+            if (!(d instanceof BitmapDrawable)) {
+                String msg = parser.getPositionDescription() + ": android:drawable has to be a bitmap";
+                throw new XmlPullParserException(msg);
+            }
+            Bitmap bitmap = ((BitmapDrawable) d).getBitmap();
+            Atlas atlas = new Atlas(bitmap);
+            Rect src = new Rect();
+            while ((type=parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.START_TAG) {
+                    String name = parser.getName();
+                    if (!name.equals("frame")) {
+                        throw new XmlPullParserException("tag <frame> expected, found <" + name + "> instead");
+                    }
+                    a = res.obtainAttributes(attrset, LAYER_ATTRS);
+                    String frameName = a.getString(NAME);
+                    a.recycle();
+                    if (frameName == null) {
+                        String msg = parser.getPositionDescription() + ": no android:name attribute found";
+                        throw new XmlPullParserException(msg);
+                    }
+                    parseRect(res, attrset, src);
+                    atlas.addFrame(frameName, src);
+                }
+            }
+            return atlas;
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Parses left, top, right, bottom, width and height attributes
+     */
+    private static void parseRect(Resources res, AttributeSet attrset, Rect out) {
+        TypedArray a = res.obtainAttributes(attrset, INNER_ATTRS);
+        int left = a.getInteger(LEFT, 0);
+        int top = a.getInteger(TOP, 0);
+        int right = a.getInteger(RIGHT, 0);
+        int bottom = a.getInteger(BOTTOM, 0);
+        int width = a.getInteger(WIDTH, 0);
+        int height = a.getInteger(HEIGHT, 0);
+        a.recycle();
+        out.set(left,
+                top,
+                width > 0? left + width : right,
+                height > 0? top + height : bottom);
+    }
+
+    /**
+     * Parses &lt;matrix&gt; and &lt;bounds&gt; tags of a &lt;layer&gt;
+     */
+    static void parseInner(Resources res, XmlResourceParser parser, AttributeSet attrset, LayerInfo info) throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        while (true) {
+            int type = parser.next();
+            String name = parser.getName();
+            if (type == XmlPullParser.START_TAG) {
+                if (name.equals("matrix")) {
+                    Matrix m = parseMatrix(res, parser, attrset);
+                    if (!m.isIdentity()) {
+                        info.matrix = m;
+                    }
+                }
+                if (name.equals("bounds")) {
+                    info.bounds = new Rect();
+                    parseRect(res, attrset, info.bounds);
+                }
+            }
+            if (parser.getDepth() == depth) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Parses &lt;matrix&gt; tag, the parser is positioned at its start tag
+     */
+    private static Matrix parseMatrix(Resources res, XmlResourceParser parser, AttributeSet attrset) throws XmlPullParserException, IOException {
+        Matrix m = new Matrix();
+        int type = parser.next();
+        String name = parser.getName();
+        while (true) {
+            if (type == XmlPullParser.START_TAG) {
+                TypedArray a = res.obtainAttributes(attrset, INNER_ATTRS);
+                if (name.equals("translate")) {
+                    float dx = a.getFloat(DX, 0);
+                    float dy = a.getFloat(DY, 0);
+                    m.preTranslate(dx, dy);
+                } else
+                if (name.equals("scale")) {
+                    float sx = a.getFloat(SX, 0);
+                    float sy = a.getFloat(SY, 0);
+                    float px = a.getFloat(PX, 0);
+                    float py = a.getFloat(PY, 0);
+                    m.preScale(sx, sy, px, py);
+                } else
+                if (name.equals("rotate")) {
+                    float degrees = a.getFloat(DEGREES, 0);
+                    float px = a.getFloat(PX, 0);
+                    float py = a.getFloat(PY, 0);
+                    m.preRotate(degrees, px, py);
+                } else
+                if (name.equals("skew")) {
+                    float kx = a.getFloat(KX, 0);
+                    float ky = a.getFloat(KY, 0);
+                    float px = a.getFloat(PX, 0);
+                    float py = a.getFloat(PY, 0);
+                    m.preSkew(kx, ky, px, py);
+                } else {
+                    String msg = parser.getPositionDescription() + ": unexpected tag <" + name + "> found, " +
+                            "expected are <translate> | <scale> | <rotate> | <skew>";
+                    throw new XmlPullParserException(msg);
+                }
+                a.recycle();
+            } else
+            if (type == XmlPullParser.END_TAG && name.equals("matrix")) {
+                break;
+            }
+            type = parser.next();
+            name = parser.getName();
+        }
+        return m;
+    }
+}
@@ -0,0 +1,206 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Process wide LRU cache of the downsampled levels of the Bitmaps drawn
+ * by {@link PatchworkDrawable}s with the mipmapping enabled, see
+ * {@link PatchworkDrawable#setMipmappingEnabled(boolean)}.
+ *
+ * Level n is half the size of level n - 1 (level 0 being the Bitmap
+ * itself), the levels are built on demand, each one filtered from the
+ * previous. The size of an entry is the byte size of all its levels.
+ * When the cache is full the least recently used Bitmaps lose their levels,
+ * if a level still does not fit the biggest available one is used instead.
+ * Evicted levels are not recycled as they may still be in use. The source
+ * Bitmaps are referenced weakly, so the cache never keeps them alive: the
+ * levels of a collected Bitmap are dropped.
+ */
+public class MipmapCache {
+    /**
+     * The maximum level
+     */
+    public final static int MAX_LEVEL = 6;
+
+    private final static int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    private static WeakHashMap<Bitmap, Entry> sEntries = new WeakHashMap<Bitmap, Entry>();
+    // least recently used first, the values are unused
+    private static LinkedHashMap<Entry, Entry> sOrder = new LinkedHashMap<Entry, Entry>(16, 0.75f, true);
+    private static int sMaxSize = DEFAULT_MAX_SIZE;
+    private static int sSize;
+    private static int sHitCount;
+    private static int sMissCount;
+    private static int sEvictionCount;
+
+    private static class Entry {
+        WeakReference<Bitmap> source;
+        // level 0 is the source itself and is not stored
+        Bitmap[] levels = new Bitmap[MAX_LEVEL + 1];
+        int size;
+    }
+
+    private MipmapCache() {
+    }
+
+    /**
+     * Sets the maximum size of the cache, evicting entries if needed
+     * @param maxSize The maximum size in bytes, 0 disables the cache
+     */
+    public static synchronized void setMaxSize(int maxSize) {
+        sMaxSize = maxSize;
+        trimToSize(maxSize, null);
+    }
+
+    /**
+     * @return The maximum size of the cache in bytes
+     */
+    public static synchronized int getMaxSize() {
+        return sMaxSize;
+    }
+
+    /**
+     * @return The current size of the cache in bytes
+     */
+    public static synchronized int getSize() {
+        purge();
+        return sSize;
+    }
+
+    /**
+     * @return Number of levels found in the cache
+     */
+    public static synchronized int getHitCount() {
+        return sHitCount;
+    }
+
+    /**
+     * @return Number of levels built
+     */
+    public static synchronized int getMissCount() {
+        return sMissCount;
+    }
+
+    /**
+     * @return Number of entries evicted from the cache
+     */
+    public static synchronized int getEvictionCount() {
+        return sEvictionCount;
+    }
+
+    /**
+     * Removes the levels of given Bitmap, call it before recycling the Bitmap
+     */
+    public static synchronized void remove(Bitmap source) {
+        Entry entry = sEntries.remove(source);
+        if (entry != null) {
+            sOrder.remove(entry);
+            sSize -= entry.size;
+        }
+    }
+
+    /**
+     * Removes all entries
+     */
+    public static synchronized void clear() {
+        sEntries.clear();
+        sOrder.clear();
+        sSize = 0;
+    }
+
+    /**
+     * Get a downsampled level of the Bitmap, building it (and the levels
+     * above it) if needed
+     * @param source The Bitmap (level 0)
+     * @param level The requested level (1..{@link #MAX_LEVEL})
+     * @return The requested level or the biggest one available: a smaller
+     * level when it does not fit the cache or the source is too small,
+     * the source itself if no level is available
+     */
+    static synchronized Bitmap get(Bitmap source, int level) {
+        if (source.isRecycled()) {
+            return source;
+        }
+        level = Math.min(level, MAX_LEVEL);
+        Entry entry = sEntries.get(source);
+        if (entry != null) {
+            sOrder.get(entry);
+            if (entry.levels[level] != null) {
+                sHitCount++;
+                return entry.levels[level];
+            }
+        } else {
+            entry = new Entry();
+            entry.source = new WeakReference<Bitmap>(source);
+            sEntries.put(source, entry);
+            sOrder.put(entry, entry);
+        }
+        Bitmap[] levels = entry.levels;
+        int l = 1;
+        while (l <= level) {
+            if (levels[l] == null) {
+                Bitmap prev = l > 1? levels[l - 1] : source;
+                int width = prev.getWidth() / 2;
+                int height = prev.getHeight() / 2;
+                if (width < 1 || height < 1) {
+                    break;
+                }
+                int size = width * height * (prev.getRowBytes() / prev.getWidth());
+                if (sSize + size > sMaxSize) {
+                    trimToSize(sMaxSize - size, entry);
+                    if (sSize + size > sMaxSize) {
+                        break;
+                    }
+                }
+                sMissCount++;
+                levels[l] = Bitmap.createScaledBitmap(prev, width, height, true);
+                size = levels[l].getRowBytes() * height;
+                entry.size += size;
+                sSize += size;
+            }
+            l++;
+        }
+        if (entry.size == 0) {
+            sEntries.remove(source);
+            sOrder.remove(entry);
+        }
+        return l > 1? levels[l - 1] : source;
+    }
+
+    /**
+     * Drops the levels of the collected Bitmaps
+     */
+    private static void purge() {
+        Iterator<Entry> iter = sOrder.keySet().iterator();
+        while (iter.hasNext()) {
+            Entry entry = iter.next();
+            if (entry.source.get() == null) {
+                iter.remove();
+                sSize -= entry.size;
+            }
+        }
+    }
+
+    private static void trimToSize(int maxSize, Entry keep) {
+        purge();
+        Iterator<Entry> iter = sOrder.keySet().iterator();
+        while (sSize > maxSize && iter.hasNext()) {
+            Entry entry = iter.next();
+            if (entry == keep) {
+                continue;
+            }
+            iter.remove();
+            Bitmap source = entry.source.get();
+            if (source != null) {
+                sEntries.remove(source);
+            }
+            sSize -= entry.size;
+            sEvictionCount++;
+        }
+    }
+}
@@ -1,42 +1,197 @@
 package org.pskink.patchworkdrawable.drawable;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.pskink.patchworkdrawable.R;
-import org.xmlpull.v1.XmlPullParser;
+import org.pskink.patchworkdrawable.drawable.LayersParser.GroupInfo;
+import org.pskink.patchworkdrawable.drawable.LayersParser.LayerInfo;
 import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.Context;
 import android.content.res.Resources;
-import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Region;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Drawable.Callback;
+import android.graphics.drawable.Drawable.ConstantState;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
-import android.util.Xml;
+import android.util.SparseArray;
+import android.util.TypedValue;
+import android.view.Gravity;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.view.animation.Transformation;
+import android.widget.ImageView;
 
 public class PatchworkDrawable extends Drawable implements Callback {
     private final static String TAG = "PatchworkDrawable";
+    private final static int MAX_OCCLUDERS = 4;
+    private final static long SUSPENDED_ANIMATION_INTERVAL = 100;
+    // 8 MB of ARGB_8888 pixels per flattened run
+    private final static int MAX_FLATTENED_PIXELS = 2048 * 1024;
 
     private ArrayList<Layer> mLayers;
     private Drawable mBackground;
-    private Resources mResources;
+    private PatchworkDrawableResources mResources;
     private Matrix mDrawMatrix;
+    private RectF mDirtyRect;
+    private Rect mTmpDirtyRect;
+    private LayerGrid mGrid;
+    private HashMap<String, Layer> mLayersByName;
+    private SparseArray<Layer> mLayersById;
+    private boolean mFlatteningEnabled;
+    private boolean mFlattenedDirty;
+    private Layer[] mOccluders;
+    private int mNumOccluders;
+    private boolean mOccludersDirty;
+    private RectF mBackgroundBounds;
+    private long mSuspendedTickTime;
+    private RectF mViewport;
+    private RectF mSuspendedDirtyRect;
+    private Matrix mViewportMatrix;
+    private ArrayList<FlattenedRun> mFlattenedRuns;
+    private Paint mFlattenedPaint;
+    private SpriteBatch mSpriteBatch;
+    private SceneLoader mSceneLoader;
+    private TimeSource mTimeSource;
+    private long mFrameInterval;
+    private long mLastFrameTime;
+    private long mNextFrameTime;
+    private ArrayList<LayerGroup> mGroups;
+    private HashMap<String, LayerGroup> mGroupsByName;
+    private boolean mGroupRangesDirty;
+    private ArrayList<LayerGroup> mPendingGroups;
+    private Matrix mGroupDeltaMatrix;
+    private int mFrameId;
+    private int mBatchDepth;
+    private int mBatchMinIndex = Integer.MAX_VALUE;
+    private boolean mBatchRemovals;
+    private boolean mBatchGridDirty;
+    private boolean mBatchLookupDirty;
+    private boolean mBatchInvalidateAll;
+    private ArrayList<LayerStateBuffer> mStateBuffers;
+    private AtomicBoolean mStatesPosted;
+    private Handler mMainHandler;
+    private Layer[] mKeyframeLayers;
+    private int mNumKeyframeLayers;
+    private RenderStats mStats;
+    private OnFrameStatsListener mStatsListener;
+    private boolean mMipmappingEnabled;
+    private Matrix mCanvasMatrix;
+    private Rect mTmpSrc;
+    private boolean mLazyInflationEnabled;
+    private int mLayerMemoryBudget;
+    private ArrayList<DeferredDrawable> mInflatedLayers;
+    private int mInflatedSize;
+
+    private static ExecutorService sSceneLoaderExecutor;
+
+    /**
+     * The source of time used to evaluate the layer animations
+     */
+    public interface TimeSource {
+        /**
+         * @return Current animation time in milliseconds
+         */
+        long currentTimeMillis();
+    }
+
+    /**
+     * The default TimeSource: {@link AnimationUtils#currentAnimationTimeMillis()}
+     */
+    public final static TimeSource ANIMATION_TIME = new TimeSource() {
+        @Override
+        public long currentTimeMillis() {
+            return AnimationUtils.currentAnimationTimeMillis();
+        }
+    };
+
+    /**
+     * Listener notified (on the main thread) when the layers requested
+     * by {@link PatchworkDrawable#loadLayersAsync} have been loaded
+     */
+    public interface OnLayersLoadedListener {
+        /**
+         * Called when the new layers have replaced the old ones
+         * @param d The PatchworkDrawable the layers were loaded for
+         */
+        void onLayersLoaded(PatchworkDrawable d);
+
+        /**
+         * Called when the layers could not be loaded, the old layers are kept.
+         * Also called with a CancellationException when the loaded layers
+         * are dropped because the Drawable has no Callback, but not when the
+         * load is cancelled by {@link PatchworkDrawable#cancelLoadLayers()} or
+         * another load.
+         * @param d The PatchworkDrawable the layers were loaded for
+         * @param e The reason of the failure
+         */
+        void onLayersLoadFailed(PatchworkDrawable d, Exception e);
+    }
+
+    /**
+     * Listener notified at the end of every frame drawn while the stats
+     * are enabled, see {@link PatchworkDrawable#setStatsEnabled(boolean)}
+     */
+    public interface OnFrameStatsListener {
+        /**
+         * Called at the end of {@link PatchworkDrawable#draw(Canvas)}
+         * @param d The PatchworkDrawable that was drawn
+         * @param stats The stats, reused for the next frames so they 
+         * should be copied if kept
+         */
+        void onFrameStats(PatchworkDrawable d, RenderStats stats);
+    }
+
+    /**
+     * A Callback that is able to invalidate only a part of this Drawable.
+     * 
+     * If the Callback of this Drawable implements this interface only the
+     * regions that really changed (layers added, removed, moved or animated)
+     * are reported instead of calling {@link #invalidateSelf()}.
+     * {@link ImageView} is handled out of the box.
+     */
+    public interface DirtyRectCallback extends Callback {
+        /**
+         * Called when a part of the Drawable needs to be redrawn
+         * @param who The Drawable that is requesting the update
+         * @param dirty The dirty rectangle in the Drawable's coordinates
+         */
+        void invalidateDrawable(Drawable who, Rect dirty);
+    }
 
     /**
      * Creates a new PatchworkDrawable.
@@ -69,6 +224,7 @@ public class PatchworkDrawable extends Drawable implements Callback {
             checkBounds(mBackground);
         }
         setBounds(mBackground.getBounds());
+        mGrid = new LayerGrid(mBackground.getBounds());
     }
 
 
@@ -82,6 +238,7 @@ public class PatchworkDrawable extends Drawable implements Callback {
         mBackground = d;
         checkBounds(mBackground);
         setBounds(mBackground.getBounds());
+        mGrid = new LayerGrid(mBackground.getBounds());
     }
     
     /**
@@ -92,29 +249,407 @@ public class PatchworkDrawable extends Drawable implements Callback {
         return mLayers.size();
     }
 
+    /**
+     * Enables or disables caching of the static content in bitmaps.
+     * 
+     * When enabled the background and every contiguous run of layers
+     * that are not animated are rasterized into cached bitmaps (at the
+     * Drawable's own resolution) so that only the animated layers are 
+     * drawn live. The cache is rebuilt automatically when a static layer
+     * is added, removed, transformed or starts animating.
+     * Layers whose Drawables invalidate themselves (e.g. AnimationDrawable)
+     * and the lazily inflated layers (see {@link #setLazyInflationEnabled})
+     * are always drawn live.
+     * The cached bitmaps are clipped to the Drawable's bounds, a run covering
+     * more than 2048x1024 pixels is not cached.
+     * @param enabled true to enable the caching
+     */
+    public void setFlatteningEnabled(boolean enabled) {
+        if (mFlatteningEnabled == enabled) {
+            return;
+        }
+        mFlatteningEnabled = enabled;
+        if (!enabled) {
+            recycleFlattenedRuns();
+        }
+        invalidateStaticContent();
+        countInvalidation(RenderStats.INVALIDATE_ALL);
+        invalidateSelf();
+    }
+
+    /**
+     * @return true if static content caching is enabled
+     * @see #setFlatteningEnabled(boolean)
+     */
+    public boolean isFlatteningEnabled() {
+        return mFlatteningEnabled;
+    }
+
+    /**
+     * Enables or disables the mipmapping: a Bitmap (of a BitmapDrawable or
+     * an {@link Atlas}) drawn scaled down by half or more is drawn from its
+     * downsampled level that matches the effective scale of its pixels
+     * (the ratio of the Bitmap or atlas frame to the Drawable bounds, the
+     * layer's matrix and the Canvas matrix, e.g. the ImageView's image
+     * matrix), so a Bitmap already decoded at its drawn size is not
+     * downsampled any further.
+     * The levels are built on demand and cached by {@link MipmapCache}.
+     * @param enabled true to enable the mipmapping
+     */
+    public void setMipmappingEnabled(boolean enabled) {
+        if (mMipmappingEnabled == enabled) {
+            return;
+        }
+        mMipmappingEnabled = enabled;
+        if (enabled && mCanvasMatrix == null) {
+            mCanvasMatrix = new Matrix();
+            mTmpSrc = new Rect();
+        }
+        invalidateAll();
+    }
+
+    /**
+     * @return true if the mipmapping is enabled
+     */
+    public boolean isMipmappingEnabled() {
+        return mMipmappingEnabled;
+    }
+
+    /**
+     * Enables or disables the lazy inflation of the bitmap layers loaded
+     * afterwards (by {@link #addLayers(int)}, {@link #loadLayersAsync} etc.
+     * and {@link #addLayer(int, Rect, Matrix)}).
+     * 
+     * Such a layer is only a descriptor (resource id, bounds and matrix) 
+     * until it is drawn within the clip for the first time, then its bitmap
+     * is decoded. The hit testing works on the descriptors (unless
+     * {@link Layer#setAlphaHitTest(boolean)} is enabled). Until inflated
+     * {@link Layer#getDrawable()} returns a placeholder.
+     * @param enabled true to inflate the layers lazily
+     * @see #setLayerMemoryBudget(int)
+     */
+    public void setLazyInflationEnabled(boolean enabled) {
+        mLazyInflationEnabled = enabled;
+    }
+
+    /**
+     * @return true if the bitmap layers are inflated lazily
+     */
+    public boolean isLazyInflationEnabled() {
+        return mLazyInflationEnabled;
+    }
+
+    /**
+     * Sets the maximum (estimated) size of the bitmaps of the lazily 
+     * inflated layers. When exceeded the layers which were visible least 
+     * recently drop their bitmaps, they are inflated again when visible.
+     * The bitmaps also cached by {@link DrawableCache} stay in memory
+     * within its own budget.
+     * @param maxSize The maximum size in bytes, 0 for no limit
+     */
+    public void setLayerMemoryBudget(int maxSize) {
+        mLayerMemoryBudget = maxSize;
+        if (maxSize > 0 && mInflatedSize > maxSize) {
+            evictLayers(maxSize, true);
+        }
+    }
+
+    /**
+     * @return The estimated size of the bitmaps of the inflated lazy layers
+     */
+    public int getInflatedLayersSize() {
+        return mInflatedSize;
+    }
+
+    /**
+     * Releases the memory as the system asks for in
+     * ComponentCallbacks2.onTrimMemory: the lazily inflated layers drop 
+     * their bitmaps, all of them if the UI is hidden, otherwise the ones 
+     * outside of the area visible in the last frame
+     * @param level The trim level
+     */
+    public void trimMemory(int level) {
+        evictLayers(0, level < BitmapPool.TRIM_MEMORY_UI_HIDDEN);
+    }
+
+    /**
+     * Enables or disables the collection of the rendering metrics, when
+     * disabled (the default) they cost nothing but a few null checks
+     * @param enabled true to collect the metrics
+     */
+    public void setStatsEnabled(boolean enabled) {
+        if (!enabled) {
+            mStats = null;
+        } else
+        if (mStats == null) {
+            mStats = new RenderStats();
+        }
+    }
+
+    /**
+     * @return The rendering metrics or null if not enabled
+     */
+    public RenderStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Clears the rendering metrics and the per layer histograms
+     */
+    public void resetStats() {
+        if (mStats != null) {
+            mStats.reset();
+        }
+        int numLayers = mLayers.size();
+        for (int i = 0; i < numLayers; i++) {
+            mLayers.get(i).drawTimeHistogram = null;
+        }
+    }
+
+    /**
+     * Sets the listener notified after every frame while the stats are
+     * enabled
+     * @param listener The listener or null
+     */
+    public void setOnFrameStatsListener(OnFrameStatsListener listener) {
+        mStatsListener = listener;
+    }
+
+    private void countInvalidation(int source) {
+        if (mStats != null) {
+            mStats.addInvalidation(source);
+        }
+    }
+
+    /**
+     * Sets the source of time used to evaluate the layer animations.
+     * 
+     * The time is sampled once per {@link #draw(Canvas)}, so all layers
+     * see the same frame time. A custom TimeSource can be used for 
+     * deterministic rendering (tests, rendering offline into a Bitmap).
+     * @param timeSource The TimeSource or null to use {@link #ANIMATION_TIME}
+     */
+    public void setTimeSource(TimeSource timeSource) {
+        mTimeSource = timeSource != null? timeSource : ANIMATION_TIME;
+    }
+
+    /**
+     * Limits the rate of the frames drawn while layer animations are running.
+     * 
+     * Instead of invalidating right after a frame is drawn, the next frame is 
+     * scheduled with {@link #scheduleSelf(Runnable, long)} no sooner than 
+     * 1000 / fps milliseconds after the previous one.
+     * @param fps Maximum number of frames per second, 0 for no limit
+     */
+    public void setMaxFrameRate(float fps) {
+        mFrameInterval = fps > 0? (long) (1000 / fps) : 0;
+    }
+
+    /**
+     * Starts a batch of changes.
+     * 
+     * Until the matching {@link #commitBatch()} adding, removing and 
+     * transforming layers and groups or starting their animations do not 
+     * invalidate anything, the removed layers are dropped, the layers are
+     * renumbered and the hit testing data is rebuilt in a single pass and
+     * the union of all the changed areas is invalidated once on commit.
+     * Batches can be nested, only the outermost commit applies the changes.
+     * Drawing or hit testing with an open batch applies the pending 
+     * structural changes first.
+     */
+    public void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * Ends a batch of changes started with {@link #beginBatch()}
+     * @throws RuntimeException if there is no open batch
+     */
+    public void commitBatch() throws RuntimeException {
+        if (mBatchDepth == 0) {
+            String detailMessage = "commitBatch() called without beginBatch()";
+            throw new RuntimeException(detailMessage);
+        }
+        if (--mBatchDepth > 0) {
+            return;
+        }
+        applyBatch();
+        invalidateStaticContent();
+        if (mBatchInvalidateAll) {
+            mBatchInvalidateAll = false;
+            mDirtyRect.setEmpty();
+            countInvalidation(RenderStats.INVALIDATE_ALL);
+            invalidateSelf();
+        } else {
+            flushDirtyRect();
+        }
+    }
+
+    /**
+     * Applies the pending structural changes of the batch: drops the 
+     * removed layers, renumbers the layers and rebuilds the hit testing
+     * grid and the lookup tables
+     */
+    private void applyBatch() {
+        if (mBatchRemovals) {
+            compactLayers();
+        }
+        if (mBatchMinIndex < mLayers.size()) {
+            updateIndices(mBatchMinIndex);
+        }
+        mBatchMinIndex = Integer.MAX_VALUE;
+        int numLayers = mLayers.size();
+        if (mBatchGridDirty) {
+            mBatchGridDirty = false;
+            mGrid.clear();
+            for (int i = 0; i < numLayers; i++) {
+                mGrid.insert(mLayers.get(i));
+            }
+        }
+        if (mBatchLookupDirty) {
+            mBatchLookupDirty = false;
+            mLayersByName.clear();
+            mLayersById.clear();
+            for (int i = 0; i < numLayers; i++) {
+                indexLayer(mLayers.get(i));
+            }
+        }
+    }
+
+    /**
+     * Drops the layers removed in the batch in a single pass
+     */
+    private void compactLayers() {
+        mBatchRemovals = false;
+        ArrayList<Layer> layers = mLayers;
+        int numLayers = layers.size();
+        int n = 0;
+        for (int i = 0; i < numLayers; i++) {
+            Layer layer = layers.get(i);
+            if (layer.valid) {
+                layers.set(n++, layer);
+            } else
+            if (i < mBatchMinIndex) {
+                mBatchMinIndex = i;
+            }
+        }
+        layers.subList(n, numLayers).clear();
+        mGroupRangesDirty = true;
+    }
+
+    /**
+     * Updates the hit testing data of the layer or defers it to the end
+     * of the batch
+     */
+    private void updateGrid(Layer layer) {
+        if (mBatchDepth > 0) {
+            mBatchGridDirty = true;
+        } else {
+            mGrid.update(layer);
+        }
+    }
+
+    /**
+     * Invalidates the whole Drawable or defers it to the end of the batch
+     */
+    private void invalidateAll() {
+        if (mBatchDepth > 0) {
+            mBatchInvalidateAll = true;
+        } else {
+            countInvalidation(RenderStats.INVALIDATE_ALL);
+            invalidateSelf();
+        }
+    }
+
     /**
      * Find a layer by name (used when adding layers with {@link #addLayers(int)})
      * @param name Name of a layer
      * @return A layer with given name or null when not found
      */
     public Layer findLayerByName(String name) {
-        Iterator<Layer> iter = mLayers.iterator();
-        while (iter.hasNext()) {
-            PatchworkDrawable.Layer layer = iter.next();
-            if (name.equals(layer.layerName)) {
-                return layer;
+        if (mBatchDepth > 0) {
+            applyBatch();
+        }
+        return mLayersByName.get(name);
+    }
+
+    /**
+     * Find a layer by id (android:id attribute used when adding layers 
+     * with {@link #addLayers(int)})
+     * @param id Id of a layer
+     * @return A layer with given id or null when not found
+     */
+    public Layer findLayerById(int id) {
+        if (mBatchDepth > 0) {
+            applyBatch();
+        }
+        return mLayersById.get(id);
+    }
+
+    /**
+     * Find a group by name (android:name attribute of &lt;group&gt; or the 
+     * name passed to {@link #addGroup(LayerGroup, String, Matrix)})
+     * @param name Name of a group
+     * @return The first group with given name or null when not found
+     */
+    public LayerGroup findGroupByName(String name) {
+        return mGroupsByName.get(name);
+    }
+
+    /**
+     * Adds the layer to the name and id lookup tables, if more layers 
+     * share the same name or id the bottommost one is found
+     */
+    private void indexLayer(Layer layer) {
+        if (layer.layerName != null) {
+            Layer other = mLayersByName.get(layer.layerName);
+            if (other == null || other.index > layer.index) {
+                mLayersByName.put(layer.layerName, layer);
+            }
+        }
+        if (layer.layerId != 0) {
+            Layer other = mLayersById.get(layer.layerId);
+            if (other == null || other.index > layer.index) {
+                mLayersById.put(layer.layerId, layer);
+            }
+        }
+    }
+
+    /**
+     * Removes the layer from the name and id lookup tables
+     */
+    private void unindexLayer(Layer layer) {
+        if (layer.layerName != null && mLayersByName.get(layer.layerName) == layer) {
+            mLayersByName.remove(layer.layerName);
+            // fall back to another layer with the same name, if any
+            for (int i = 0; i < mLayers.size(); i++) {
+                Layer other = mLayers.get(i);
+                if (layer.layerName.equals(other.layerName)) {
+                    mLayersByName.put(other.layerName, other);
+                    break;
+                }
+            }
+        }
+        if (layer.layerId != 0 && mLayersById.get(layer.layerId) == layer) {
+            mLayersById.remove(layer.layerId);
+            for (int i = 0; i < mLayers.size(); i++) {
+                Layer other = mLayers.get(i);
+                if (layer.layerId == other.layerId) {
+                    mLayersById.put(other.layerId, other);
+                    break;
+                }
             }
         }
-        return null;
     }
 
     private RectF mTmpRect = new RectF();
-    private Matrix mTmpMatrix = new Matrix();
     private Matrix mTmpInverseMatrix = new Matrix();
     private float[] mTmpPts = new float[4];
+    private float[] mTmpValues = new float[9];
 
     /**
-     * Find all layers which bounds contain point (x, y). The coordinate is a pixel
+     * Find all layers which bounds contain point (x, y), or which non transparent
+     * pixels do if {@link Layer#setAlphaHitTest(boolean)} is enabled. The coordinate is a pixel
      * based, relative to the top-left corner of the view this Drawable is 
      * drawn with (so you can pass TouchEvent#getX() and TouchEvent#getY())
      * @param list Where the layers are written
@@ -125,30 +660,112 @@ public class PatchworkDrawable extends Drawable implements Callback {
      * @param y The Y coordinate of the point being tested for containment
      */
     public void getLayersAt(List<Layer> list, Matrix m, float x, float y) {
-        Iterator<Layer> iter = mLayers.iterator();
+        RenderStats stats = mStats;
+        if (stats == null) {
+            findLayersAt(list, m, x, y);
+            return;
+        }
+        long start = System.nanoTime();
+        findLayersAt(list, m, x, y);
+        stats.addHitTest(System.nanoTime() - start);
+    }
+
+    private void findLayersAt(List<Layer> list, Matrix m, float x, float y) {
         list.clear();
+        resolvePendingGroups();
+        if (!mapToDrawable(m, x, y)) {
+            return;
+        }
         float[] pts = mTmpPts;
-        pts[0] = x;
-        pts[1] = y;
-        
-        while (iter.hasNext()) {
-            Layer layer = iter.next();
-        
-            mTmpMatrix.reset();
-            if (m != null) {
-                mTmpMatrix.preConcat(m);
+        ArrayList<Layer> cell = mGrid.getCell(pts[0], pts[1]);
+        if (cell == null) {
+            return;
+        }
+        int numLayers = cell.size();
+        for (int i = 0; i < numLayers; i++) {
+            Layer layer = cell.get(i);
+            if (layer.contains(pts[0], pts[1])) {
+                list.add(layer);
             }
-            if (layer.matrix != null) {
-                mTmpMatrix.preConcat(layer.matrix);
+        }
+    }
+
+    /**
+     * Find the topmost layer which bounds contain point (x, y). See 
+     * {@link #getLayersAt(List, Matrix, float, float)} for the meaning 
+     * of the parameters
+     * @return The topmost layer at given point or null if none
+     */
+    public Layer getTopLayerAt(Matrix m, float x, float y) {
+        RenderStats stats = mStats;
+        if (stats == null) {
+            return findTopLayerAt(m, x, y);
+        }
+        long start = System.nanoTime();
+        Layer layer = findTopLayerAt(m, x, y);
+        stats.addHitTest(System.nanoTime() - start);
+        return layer;
+    }
+
+    private Layer findTopLayerAt(Matrix m, float x, float y) {
+        resolvePendingGroups();
+        if (!mapToDrawable(m, x, y)) {
+            return null;
+        }
+        float[] pts = mTmpPts;
+        ArrayList<Layer> cell = mGrid.getCell(pts[0], pts[1]);
+        if (cell == null) {
+            return null;
+        }
+        for (int i = cell.size() - 1; i >= 0; i--) {
+            Layer layer = cell.get(i);
+            if (layer.contains(pts[0], pts[1])) {
+                return layer;
             }
-            if (mTmpMatrix.invert(mTmpInverseMatrix)) {
-                mTmpInverseMatrix.mapPoints(pts, 2, pts, 0, 1);
-                mTmpRect.set(layer.drawable.getBounds());
-                if (mTmpRect.contains(pts[2], pts[3])) {
-                    list.add(layer);
-                }
+        }
+        return null;
+    }
+
+    /**
+     * Maps the view point (x, y) to the Drawable's coordinates, the result 
+     * is stored in mTmpPts[0], mTmpPts[1]. Applies the pending batch changes
+     * so the grid is up to date.
+     * @return false if the matrix cannot be inverted
+     */
+    private boolean mapToDrawable(Matrix m, float x, float y) {
+        if (mBatchDepth > 0) {
+            applyBatch();
+        }
+        float[] pts = mTmpPts;
+        pts[0] = x;
+        pts[1] = y;
+        if (m != null && !m.isIdentity()) {
+            if (!m.invert(mTmpInverseMatrix)) {
+                return false;
             }
+            mTmpInverseMatrix.mapPoints(pts, 0, pts, 0, 1);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a new layer showing a drawable resource. A bitmap is decoded
+     * downsampled if the bounds scaled by the matrix are smaller than 
+     * (a half of) its size, a jpeg as RGB_565.
+     * @param resId Id of the drawable resource
+     * @param bounds Bounds of the Drawable (or null to use its intrinsic size)
+     * @param m Matrix to apply to the Drawable
+     * @return A new layer
+     */
+    public Layer addLayer(int resId, Rect bounds, Matrix m) {
+        Drawable d = getLayerDrawable(resId, bounds, m);
+        if (bounds != null) {
+            d.setBounds(bounds);
         }
+        Layer layer = addLayer(d, m);
+        // the layer holds its own reference now
+        BitmapPool.release(d);
+        return layer;
     }
 
     /**
@@ -159,8 +776,8 @@ public class PatchworkDrawable extends Drawable implements Callback {
      */
     public Layer addLayer(Drawable d, Matrix m) {
         Layer layer = new Layer(d, m);
-        mLayers.add(layer);
-        invalidateSelf();
+        insertLayer(mLayers.size(), layer);
+        invalidateLayer(layer);
         return layer;
     }
 
@@ -182,8 +799,8 @@ public class PatchworkDrawable extends Drawable implements Callback {
      */
     public Layer addLayer(int idx, Drawable d, Matrix m) {
         Layer layer = new Layer(d, m);
-        mLayers.add(idx, layer);
-        invalidateSelf();
+        insertLayer(idx, layer);
+        invalidateLayer(layer);
         return layer;
     }
 
@@ -198,412 +815,2835 @@ public class PatchworkDrawable extends Drawable implements Callback {
     }
 
     /**
-     * Remove a layer
-     * @param layer Layer to be removed
+     * Adds a new layer as the topmost child of the group
+     * @param group The group (or null to add the layer on top of all layers)
+     * @param d Drawable to be drawn on this Layer
+     * @param m Matrix to apply to the Drawable, relative to the group
+     * @return A new layer
+     * @throws RuntimeException if the group has been removed
      */
-    public void removeLayer(Layer layer) {
-        layer.valid = false;
-        mLayers.remove(layer);
+    public Layer addLayer(LayerGroup group, Drawable d, Matrix m) throws RuntimeException {
+        checkGroup(group);
+        Layer layer = new Layer(d, m);
+        layer.group = group;
+        insertLayer(getGroupEnd(group), layer);
+        invalidateLayer(layer);
+        return layer;
+    }
+
+    private void insertLayer(int idx, Layer layer) {
+        if (mBatchDepth > 0) {
+            if (mBatchRemovals && idx < mLayers.size()) {
+                // idx is meant without the removed layers
+                compactLayers();
+            }
+            mLayers.add(idx, layer);
+            layer.index = idx;
+            clampZ(layer, idx);
+            mBatchMinIndex = Math.min(mBatchMinIndex, idx);
+            mBatchGridDirty = true;
+            mGroupRangesDirty = true;
+        } else {
+            mLayers.add(idx, layer);
+            updateIndices(idx);
+            clampZ(layer, idx);
+            mGrid.insert(layer);
+        }
+        invalidateStaticContent();
     }
 
     /**
-     * Remove all layers
+     * Moves the layer to given index in the z-order, the layers in between
+     * are shifted by one. The z value of the layer is adjusted (if needed) 
+     * to keep the layers sorted by z.
+     * @param layer The layer to move
+     * @param newIndex The new index, from 0 (bottommost) to 
+     * {@link #getLayersSize()} - 1 (topmost)
+     * @throws IndexOutOfBoundsException
      */
-    public void removeAllLayers() {
-        Iterator<Layer> iter = mLayers.iterator();
-        while (iter.hasNext()) {
-            PatchworkDrawable.Layer layer = iter.next();
-            layer.valid = false;
-            iter.remove();
+    public void moveLayer(Layer layer, int newIndex) throws IndexOutOfBoundsException {
+        if (mBatchDepth > 0) {
+            applyBatch();
         }
-        Log.d(TAG, "removeAllLayers " + mLayers.size());
-        invalidateSelf();
+        if (!layer.valid || layer.getOwner() != this) {
+            return;
+        }
+        if (newIndex < 0 || newIndex >= mLayers.size()) {
+            throw new IndexOutOfBoundsException("invalid index " + newIndex + ", size is " + mLayers.size());
+        }
+        moveLayerTo(layer, newIndex);
+        clampZ(layer, newIndex);
     }
 
     /**
-     * Adds layers from a xml file
-     * @param id Id of the sml file
-     * @throws XmlPullParserException
-     * @throws IOException
+     * Moves the layer on top of all layers
+     * @param layer The layer to move
+     * @see #moveLayer(Layer, int)
      */
-    public void addLayers(int id) throws XmlPullParserException, IOException {
-        Resources res = mResources;
-        XmlResourceParser parser = res.getXml(id);
-        AttributeSet attrset = Xml.asAttributeSet(parser);
-        int type;
-        
-        while ((type=parser.next()) != XmlPullParser.START_TAG &&
-                type != XmlPullParser.END_DOCUMENT) {
-            // Empty loop
-        }
-        if (type != XmlPullParser.START_TAG) {
-            throw new XmlPullParserException("No start tag found");
-        }
-        String name = parser.getName();
-        if (!name.equals("layers")) {
-            throw new XmlPullParserException("No <layers> start tag found");
-        }
-        int[] attrs = {
-                android.R.attr.name,
-                android.R.attr.drawable,
-        };
-        boolean invalidate = false;
-        while ((type=parser.next()) != XmlPullParser.END_DOCUMENT) {
-            if (type == XmlPullParser.START_TAG) {
-                name = parser.getName();
-                if (!name.equals("layer")) {
-                    throw new XmlPullParserException("tag <layer> expected, found <" + name + "> instead");
-                }
-                TypedArray a = res.obtainAttributes(attrset, attrs);
-                String layerName = a.getString(0);
-                int drawableId = a.getResourceId(1, 0);
-                a.recycle();
-
-                if (drawableId == 0) {
-                    String msg = parser.getPositionDescription() + "no android:drawable attribute found";
-                    throw new XmlPullParserException(msg);
-                }
-                Drawable dr = res.getDrawable(drawableId);
-                Layer layer = new Layer(dr, layerName);
-                layer.parseInner(res, parser, attrset);
-                checkBounds(dr);
-                mLayers.add(layer);
-                invalidate = true;
-//                  Log.d(TAG, name + "drawable " + dr + " layerId " + layerId);
-//                  Log.d(TAG, name + "drawable bounds " + dr.getBounds());
-            }
-        }
-        if (invalidate) {
-            invalidateSelf();
+    public void bringToFront(Layer layer) {
+        moveLayer(layer, mLayers.size() - 1);
+    }
+
+    /**
+     * Moves the layer below all layers
+     * @param layer The layer to move
+     * @see #moveLayer(Layer, int)
+     */
+    public void sendToBack(Layer layer) {
+        moveLayer(layer, 0);
+    }
+
+    /**
+     * Shifts the layers between the old and the new index of the layer,
+     * renumbering only them. The hit testing grid keeps the relative order
+     * of the other layers so only the moved one is reinserted.
+     */
+    private void moveLayerTo(Layer layer, int to) {
+        int from = layer.index;
+        if (from == to) {
+            return;
+        }
+        ArrayList<Layer> layers = mLayers;
+        if (mBatchDepth == 0) {
+            mGrid.remove(layer);
+        }
+        if (from < to) {
+            for (int i = from; i < to; i++) {
+                Layer other = layers.get(i + 1);
+                layers.set(i, other);
+                other.index = i;
+            }
+        } else {
+            for (int i = from; i > to; i--) {
+                Layer other = layers.get(i - 1);
+                layers.set(i, other);
+                other.index = i;
+            }
+        }
+        layers.set(to, layer);
+        layer.index = to;
+        if (mBatchDepth == 0) {
+            mGrid.insert(layer);
+        } else {
+            mBatchGridDirty = true;
+        }
+        mGroupRangesDirty = true;
+        if (layer.layerName != null || layer.layerId != 0) {
+            // the bottommost layer with given name or id is found
+            if (mBatchDepth == 0) {
+                unindexLayer(layer);
+                indexLayer(layer);
+            } else {
+                mBatchLookupDirty = true;
+            }
         }
+        invalidateStaticContent();
+        invalidateLayer(layer);
     }
-    
-    public Resources getResources() {
-        return mResources;
+
+    /**
+     * Makes the z value of the layer at given index lie between the z 
+     * values of its neighbours
+     */
+    private void clampZ(Layer layer, int idx) {
+        if (idx > 0) {
+            layer.z = Math.max(layer.z, mLayers.get(idx - 1).z);
+        }
+        if (idx < mLayers.size() - 1) {
+            layer.z = Math.min(layer.z, mLayers.get(idx + 1).z);
+        }
     }
 
-    private void checkBounds(Drawable d) {
-        Rect bounds = d.getBounds();
-        if (bounds.isEmpty()) {
-            int iw = d.getIntrinsicWidth();
-            int ih = d.getIntrinsicHeight();
-            if (iw > 0 && ih > 0) {
-                d.setBounds(0, 0, iw, ih);
+    /**
+     * @return The index the layer goes to when its z value has changed:
+     * above all other layers with the same z value
+     */
+    private int findZIndex(Layer layer) {
+        ArrayList<Layer> layers = mLayers;
+        int from = layer.index;
+        // binary search in the list without the layer
+        int lo = 0;
+        int hi = layers.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            Layer other = layers.get(mid < from? mid : mid + 1);
+            if (other.z <= layer.z) {
+                lo = mid + 1;
             } else {
-                String detailMessage = "drawable bounds are empty, use d.setBounds()";
-                throw new RuntimeException(detailMessage);
+                hi = mid;
             }
         }
+        return lo;
     }
 
-    @Override
-    public int getIntrinsicWidth() {
-        return getBounds().width();
+    /**
+     * Adds a new layer drawing a frame of the Atlas. Consecutive atlas 
+     * layers that are not rotated nor skewed are drawn directly with the 
+     * Atlas' Paint, without saving and restoring the Canvas 
+     * @param atlas The Atlas
+     * @param frameName Name of the frame
+     * @param m Matrix to apply to the frame
+     * @return A new layer
+     */
+    public Layer addAtlasLayer(Atlas atlas, String frameName, Matrix m) {
+        return addLayer(new AtlasDrawable(atlas, frameName), m);
     }
-    
-    @Override
-    public int getIntrinsicHeight() {
-        return getBounds().height();
+
+    /**
+     * Like {@link #addAtlasLayer(Atlas, String, Matrix)} but adds the layer
+     * as the topmost child of the group
+     * @param group The group (or null to add the layer on top of all layers)
+     * @param atlas The Atlas
+     * @param frameName Name of the frame
+     * @param m Matrix to apply to the frame, relative to the group
+     * @return A new layer
+     */
+    public Layer addAtlasLayer(LayerGroup group, Atlas atlas, String frameName, Matrix m) {
+        return addLayer(group, new AtlasDrawable(atlas, frameName), m);
     }
-    
-    private boolean verifyDrawable(Drawable dr) {
-        if (dr == this) {
-            return true;
+
+    /**
+     * Adds a new group.
+     * 
+     * The matrix, alpha and animation of a group apply to all its layers
+     * and nested groups, so a whole cluster of layers is moved by changing
+     * a single matrix. The layers of a group are drawn as a contiguous 
+     * run in the z-order, a group that is completely outside of the 
+     * clip is skipped as a whole.
+     * @param parent The parent group or null if none
+     * @param name Name of the group (or null if none)
+     * @param m Matrix of the group, relative to its parent (or null if none)
+     * @return A new group
+     * @throws RuntimeException if the parent group has been removed
+     */
+    public LayerGroup addGroup(LayerGroup parent, String name, Matrix m) throws RuntimeException {
+        checkGroup(parent);
+        LayerGroup group = new LayerGroup(parent, name, m, 255);
+        addGroup(group);
+        return group;
+    }
+
+    private void addGroup(LayerGroup group) {
+        mGroups.add(group);
+        if (group.groupName != null && !mGroupsByName.containsKey(group.groupName)) {
+            mGroupsByName.put(group.groupName, group);
         }
-        for (int i = 0; i < mLayers.size(); i++) {
-            Layer layer = mLayers.get(i);
-            if (layer.drawable == dr) {
-                return true;
+    }
+
+    private void checkGroup(LayerGroup group) {
+        if (group != null && !group.valid) {
+            String detailMessage = "this group has already been removed";
+            throw new RuntimeException(detailMessage);
+        }
+    }
+
+    /**
+     * @return The index right after the last layer of the group (or of its
+     * closest non empty ancestor)
+     */
+    private int getGroupEnd(LayerGroup group) {
+        if (mBatchRemovals) {
+            compactLayers();
+        }
+        if (mGroupRangesDirty) {
+            updateGroupRanges();
+        }
+        for (LayerGroup g = group; g != null; g = g.parent) {
+            if (g.start < g.end) {
+                return g.end;
             }
         }
-        return false;
+        return mLayers.size();
     }
 
-    @Override
-    public void unscheduleDrawable(Drawable who, Runnable what) {
-//        Log.d(TAG, "******************** unscheduleDrawable " + who);
-        if (verifyDrawable(who) && what != null) {
-            unscheduleSelf(what);
+    /**
+     * Finds the range of layers of every group, a group whose layers are 
+     * not contiguous (e.g. a layer was added in between them with 
+     * {@link #addLayer(int, Drawable, Matrix)}) is never culled as a whole
+     */
+    private void updateGroupRanges() {
+        mGroupRangesDirty = false;
+        int numGroups = mGroups.size();
+        for (int k = 0; k < numGroups; k++) {
+            LayerGroup g = mGroups.get(k);
+            g.start = Integer.MAX_VALUE;
+            g.end = 0;
+            g.count = 0;
+        }
+        int numLayers = mLayers.size();
+        for (int i = 0; i < numLayers; i++) {
+            for (LayerGroup g = mLayers.get(i).group; g != null; g = g.parent) {
+                if (i < g.start) {
+                    g.start = i;
+                }
+                g.end = i + 1;
+                g.count++;
+            }
         }
     }
-    
-    @Override
-    public void scheduleDrawable(Drawable who, Runnable what, long when) {
-//        Log.d(TAG, "******************** scheduleDrawable " + who);
-        if (verifyDrawable(who) && what != null) {
-            scheduleSelf(what, when);
+
+    /**
+     * Redraws the area covered by the group before and after the change in
+     * constant time: the aggregate bounds of the last frame and the same 
+     * bounds moved by the change of the world matrix. The layers pick up the 
+     * new group version lazily, when drawn or hit tested.
+     * @param animated true if the group was drawn with an animation frame
+     */
+    private void invalidateGroup(LayerGroup group, boolean animated) {
+        // the change since the bounds were stored
+        Matrix delta = mGroupDeltaMatrix;
+        boolean invertible = group.boundsMatrix.invert(delta);
+        group.validate();
+        delta.postConcat(group.worldMatrix);
+        for (LayerGroup g = group; g != null; g = g.parent) {
+            // the aggregate bounds are stale until drawn again
+            g.cullable = false;
+        }
+        if (!group.pending) {
+            group.pending = true;
+            mPendingGroups.add(group);
+        }
+        invalidateStaticContent();
+        if (group.boundsFrameId < 0 || !invertible || animated) {
+            // never drawn or drawn at the animation frame: the area is not known
+            invalidateAll();
+            return;
         }
+        RectF dirty = mDirtyRect;
+        RectF moved = mTmpRect;
+        dirty.union(group.bounds);
+        delta.mapRect(moved, group.bounds);
+        dirty.union(moved);
+        flushDirtyRect();
     }
-    
-    @Override
-    public void invalidateDrawable(Drawable who) {
-//        Log.d(TAG, "******************** invalidateDrawable " + who);
-        if (verifyDrawable(who)) {
-            invalidateSelf();
+
+    /**
+     * Updates the hit testing data of the layers of the groups changed
+     * since the last frame
+     */
+    private void resolvePendingGroups() {
+        ArrayList<LayerGroup> pending = mPendingGroups;
+        int numPending = pending.size();
+        if (numPending == 0) {
+            return;
+        }
+        if (mGroupRangesDirty) {
+            updateGroupRanges();
+        }
+        for (int k = 0; k < numPending; k++) {
+            LayerGroup group = pending.get(k);
+            group.pending = false;
+            if (!group.valid) {
+                continue;
+            }
+            for (int i = group.start; i < group.end; i++) {
+                Layer layer = mLayers.get(i);
+                if (layer.isInGroup(group) && layer.validate()) {
+                    updateGrid(layer);
+                }
+            }
         }
+        pending.clear();
     }
-    
-    private void init(Context ctx) {
-        mLayers = new ArrayList<Layer>();
-        mResources = new PatchworkDrawableResources(ctx);
-        mDrawMatrix = new Matrix();
+
+    /**
+     * Forgets the pending groups, every layer has been validated
+     */
+    private void clearPendingGroups() {
+        ArrayList<LayerGroup> pending = mPendingGroups;
+        for (int k = 0; k < pending.size(); k++) {
+            pending.get(k).pending = false;
+        }
+        pending.clear();
     }
 
-    @Override
-    public void draw(Canvas canvas) {
-        mBackground.draw(canvas);
+    /**
+     * Loads an Atlas from a xml file
+     * @param id Id of the xml file
+     * @return A new Atlas
+     * @throws XmlPullParserException
+     * @throws IOException
+     * @see Atlas
+     */
+    public Atlas loadAtlas(int id) throws XmlPullParserException, IOException {
+        return LayersParser.parseAtlas(mResources, id);
+    }
+
+    /**
+     * Remove a layer
+     * @param layer Layer to be removed
+     */
+    public void removeLayer(Layer layer) {
+        if (mBatchDepth > 0 && layer.valid && layer.getOwner() == this) {
+            // dropped from the list on commit
+            layer.valid = false;
+            releaseDrawable(layer);
+            mBatchRemovals = true;
+            mBatchGridDirty = true;
+            mBatchLookupDirty = true;
+            invalidateStaticContent();
+            invalidateLayer(layer);
+            return;
+        }
+        if (!layer.valid || layer.index >= mLayers.size() || mLayers.get(layer.index) != layer) {
+            return;
+        }
+        layer.valid = false;
+        releaseDrawable(layer);
+        mLayers.remove(layer.index);
+        updateIndices(layer.index);
+        mGrid.remove(layer);
+        unindexLayer(layer);
+        invalidateStaticContent();
+        invalidateLayer(layer);
+    }
+
+    /**
+     * Renumbers the layers starting from given index
+     */
+    private void updateIndices(int start) {
+        mGroupRangesDirty = true;
+        int numLayers = mLayers.size();
+        for (int i = start; i < numLayers; i++) {
+            mLayers.get(i).index = i;
+        }
+    }
+
+    /**
+     * Remove all layers and groups
+     */
+    public void removeAllLayers() {
         int numLayers = mLayers.size();
-        boolean pendingAnimations = false;
         for (int i = 0; i < numLayers; i++) {
-            mDrawMatrix.reset();
             Layer layer = mLayers.get(i);
-            if (layer.matrix != null) {
-                mDrawMatrix.preConcat(layer.matrix);
+            layer.valid = false;
+            releaseDrawable(layer);
+        }
+        mLayers.clear();
+        mBatchRemovals = false;
+        mBatchGridDirty = false;
+        mBatchLookupDirty = false;
+        mBatchMinIndex = Integer.MAX_VALUE;
+        mGroupRangesDirty = true;
+        for (int k = 0; k < mGroups.size(); k++) {
+            mGroups.get(k).valid = false;
+        }
+        mGroups.clear();
+        mGroupsByName.clear();
+        mGrid.clear();
+        mLayersByName.clear();
+        mLayersById.clear();
+        invalidateStaticContent();
+        mDirtyRect.setEmpty();
+        invalidateAll();
+    }
+
+    /**
+     * Adds layers from a xml file
+     * @param id Id of the sml file
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    public void addLayers(int id) throws XmlPullParserException, IOException {
+        LayersParser.parse(mResources, id, mLayerInfoHandler);
+        flushDirtyRect();
+    }
+
+    /**
+     * Adds layers from a binary scene created by 
+     * {@link BinaryScene#compile(Resources, int, java.io.OutputStream)}
+     * @param in The stream to read the scene from, it is not closed
+     * @throws IOException
+     */
+    public void addLayers(InputStream in) throws IOException {
+        BinaryScene.read(in, mLayerInfoHandler);
+        flushDirtyRect();
+    }
+
+    /**
+     * Adds layers from a binary scene stored as a raw resource
+     * @param id Id of the raw resource
+     * @throws IOException
+     * @see #addLayers(InputStream)
+     */
+    public void addCompiledLayers(int id) throws IOException {
+        InputStream in = mResources.openRawResource(id);
+        try {
+            addLayers(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private LayersParser.Handler mLayerInfoHandler = new LayersParser.Handler() {
+        @Override
+        public void onGroup(GroupInfo info) {
+            addGroup(createGroup(info));
+        }
+
+        @Override
+        public void onLayer(LayerInfo info) {
+            Layer layer = createLayer(info);
+            layer.index = mLayers.size();
+            mLayers.add(layer);
+            clampZ(layer, layer.index);
+            mGroupRangesDirty = true;
+            mGrid.insert(layer);
+            indexLayer(layer);
+            invalidateStaticContent();
+            layer.getInvalidateBounds(mTmpRect);
+            mDirtyRect.union(mTmpRect);
+        }
+    };
+    
+    private Layer createLayer(LayerInfo info) {
+        Drawable dr = getLayerDrawable(info.drawableId, info.bounds, info.matrix);
+        Layer layer = new Layer(dr, info.name, info.id);
+        // the layer holds its own reference now
+        BitmapPool.release(dr);
+        if (info.group != null) {
+            layer.group = (LayerGroup) info.group.target;
+        }
+        layer.apply(info);
+        checkBounds(dr);
+        return layer;
+    }
+
+    /**
+     * Decodes the Drawable not bigger than needed to draw it into the 
+     * bounds (or its intrinsic size) scaled down by the matrix, or creates
+     * its placeholder if the lazy inflation is enabled. The Bitmap of a
+     * decoded Drawable is acquired for the caller.
+     */
+    private Drawable getLayerDrawable(int id, Rect bounds, Matrix m) {
+        float scale = 1;
+        if (m != null) {
+            // may run on the scene loader thread so mTmpValues cannot be used
+            scale = Math.min(1, getScale(m, new float[9]));
+        }
+        if (mLazyInflationEnabled) {
+            Rect size = bounds != null? bounds : mResources.getBitmapBounds(id);
+            if (size != null && !size.isEmpty()) {
+                DeferredDrawable d = new DeferredDrawable(id, scale);
+                d.setBounds(size);
+                return d;
             }
-            if (layer.animation == null) {
-                draw(canvas, layer.drawable, mDrawMatrix, 255);
-            } else {
-                Animation a = layer.animation;
-                if (!a.isInitialized()) {
-                    Rect bounds = layer.drawable.getBounds();
-                    Drawable parentDrawable = mBackground;
-                    if (parentDrawable != null) {
-                        Rect parentBounds = parentDrawable.getBounds();
-                        a.initialize(bounds.width(), bounds.height(), parentBounds.width(), parentBounds.height());
-                    } else {
-                        a.initialize(bounds.width(), bounds.height(), 0, 0);
-                    }
+        }
+        return mResources.getDrawable(id, bounds, scale);
+    }
+
+    /**
+     * Releases the bitmap of a removed layer
+     */
+    private void releaseDrawable(Layer layer) {
+        if (layer.drawable instanceof DeferredDrawable) {
+            ((DeferredDrawable) layer.drawable).evict();
+        } else {
+            BitmapPool.release(layer.drawable);
+        }
+    }
+
+    private Comparator<DeferredDrawable> mLeastRecentlyVisible = new Comparator<DeferredDrawable>() {
+        @Override
+        public int compare(DeferredDrawable lhs, DeferredDrawable rhs) {
+            return lhs.lastFrameId < rhs.lastFrameId? -1 : (lhs.lastFrameId == rhs.lastFrameId? 0 : 1);
+        }
+    };
+
+    /**
+     * Evicts the bitmaps of the least recently drawn lazy layers
+     * @param maxSize The size to trim to
+     * @param keepVisible true to keep the layers within the viewport of the
+     * last frame, even if not drawn because of a partial redraw
+     */
+    private void evictLayers(int maxSize, boolean keepVisible) {
+        ArrayList<DeferredDrawable> inflated = mInflatedLayers;
+        Collections.sort(inflated, mLeastRecentlyVisible);
+        int n = 0;
+        int kept = 0;
+        while (mInflatedSize > maxSize && n < inflated.size()) {
+            DeferredDrawable d = inflated.get(n);
+            if (keepVisible && d.isInViewport()) {
+                // kept at the front, the next ones may be offscreen
+                inflated.set(n, inflated.get(kept));
+                inflated.set(kept++, d);
+                n++;
+                continue;
+            }
+            d.release();
+            n++;
+        }
+        // removed at once rather than one by one by evict()
+        inflated.subList(kept, n).clear();
+    }
+
+    private LayerGroup createGroup(GroupInfo info) {
+        LayerGroup parent = info.parent != null? (LayerGroup) info.parent.target : null;
+        int alpha = Math.round(255 * Math.max(0, Math.min(1, info.alpha)));
+        LayerGroup group = new LayerGroup(parent, info.name, info.matrix, alpha);
+        info.target = group;
+        return group;
+    }
+
+    /**
+     * Replaces all layers with the layers from a xml file loaded
+     * in the background.
+     * 
+     * Parsing and decoding of the Drawables is done on a background thread, 
+     * the complete set of layers is then swapped in on the main thread at
+     * once. The load is cancelled if another one is started, 
+     * {@link #cancelLoadLayers()} is called or this Drawable has no Callback
+     * (is not attached to any View) at the time the load finishes.
+     * @param id Id of the xml file
+     * @param listener Notified when done (may be null)
+     * @return A Future that can be used to cancel the load
+     */
+    public Future<?> loadLayersAsync(int id, OnLayersLoadedListener listener) {
+        return loadLayersAsync(id, false, getSceneLoaderExecutor(), listener);
+    }
+
+    /**
+     * Like {@link #loadLayersAsync(int, OnLayersLoadedListener)} but reads
+     * a binary scene (see {@link #addCompiledLayers(int)}) using given Executor
+     * @param id Id of the xml file or the raw resource
+     * @param compiled true if id is the raw resource of a binary scene
+     * @param executor The Executor to load the layers on
+     * @param listener Notified when done (may be null)
+     * @return A Future that can be used to cancel the load
+     */
+    public Future<?> loadLayersAsync(int id, boolean compiled, Executor executor, OnLayersLoadedListener listener) {
+        cancelLoadLayers();
+        SceneLoader loader = new SceneLoader(new SceneBuilder(id, compiled), listener);
+        mSceneLoader = loader;
+        executor.execute(loader);
+        return loader;
+    }
+
+    /**
+     * Cancels the pending {@link #loadLayersAsync} if any
+     */
+    public void cancelLoadLayers() {
+        if (mSceneLoader != null) {
+            mSceneLoader.cancel(true);
+            mSceneLoader = null;
+        }
+    }
+
+    private static synchronized Executor getSceneLoaderExecutor() {
+        if (sSceneLoaderExecutor == null) {
+            // only the library's own thread runs in the background priority,
+            // the threads of the Executors passed by the caller are left alone
+            sSceneLoaderExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "PatchworkDrawable scene loader");
+                    return thread;
                 }
-                long currentTime = AnimationUtils.currentAnimationTimeMillis();
-                boolean running = a.getTransformation(currentTime, layer.transformation);
-                if (running) {
-                    // animation is running: draw animation frame
-                    Matrix animationFrameMatrix = layer.transformation.getMatrix();
-                    mDrawMatrix.preConcat(animationFrameMatrix);
+            });
+        }
+        return sSceneLoaderExecutor;
+    }
+
+    /**
+     * Complete set of layers built off the main thread
+     */
+    private class Scene implements LayersParser.Handler {
+        private ArrayList<Layer> layers = new ArrayList<Layer>();
+        private LayerGrid grid = new LayerGrid(mBackground.getBounds());
+        private HashMap<String, Layer> layersByName = new HashMap<String, Layer>();
+        private SparseArray<Layer> layersById = new SparseArray<Layer>();
+        private ArrayList<LayerGroup> groups = new ArrayList<LayerGroup>();
+        private HashMap<String, LayerGroup> groupsByName = new HashMap<String, LayerGroup>();
+
+        @Override
+        public void onGroup(GroupInfo info) {
+            LayerGroup group = createGroup(info);
+            groups.add(group);
+            if (info.name != null && !groupsByName.containsKey(info.name)) {
+                groupsByName.put(info.name, group);
+            }
+        }
+
+        @Override
+        public void onLayer(LayerInfo info) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException();
+            }
+            Layer layer = createLayer(info);
+            layer.index = layers.size();
+            layers.add(layer);
+            grid.insert(layer);
+            if (info.name != null && !layersByName.containsKey(info.name)) {
+                layersByName.put(info.name, layer);
+            }
+            if (info.id != 0 && layersById.get(info.id) == null) {
+                layersById.put(info.id, layer);
+            }
+        }
+    }
+
+    /**
+     * Releases the Drawables of a scene that is not going to be shown
+     */
+    private void releaseScene(Scene scene) {
+        ArrayList<Layer> layers = scene.layers;
+        int numLayers = layers.size();
+        for (int i = 0; i < numLayers; i++) {
+            releaseDrawable(layers.get(i));
+        }
+    }
+
+    /**
+     * Builds the scene on the loader thread. Whichever of the loader thread 
+     * and the main thread comes last releases the scene if it is discarded, 
+     * a partially built scene is released by the loader thread.
+     */
+    private class SceneBuilder implements Callable<Scene> {
+        private int id;
+        private boolean compiled;
+        private Scene scene;
+        private boolean discarded;
+
+        SceneBuilder(int id, boolean compiled) {
+            this.id = id;
+            this.compiled = compiled;
+        }
+
+        @Override
+        public Scene call() throws Exception {
+            Scene s = new Scene();
+            boolean built = false;
+            try {
+                if (compiled) {
+                    InputStream in = mResources.openRawResource(id);
+                    try {
+                        BinaryScene.read(in, s);
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    LayersParser.parse(mResources, id, s);
+                }
+                built = true;
+            } finally {
+                if (!built) {
+                    releaseScene(s);
+                }
+            }
+            synchronized (this) {
+                if (discarded) {
+                    releaseScene(s);
+                    throw new CancellationException();
+                }
+                scene = s;
+            }
+            return s;
+        }
+
+        /**
+         * Called on the main thread when the scene is not going to be shown
+         */
+        synchronized void discard() {
+            discarded = true;
+            if (scene != null) {
+                releaseScene(scene);
+                scene = null;
+            }
+        }
+    }
+
+    private class SceneLoader extends FutureTask<Scene> {
+        private SceneBuilder mBuilder;
+        private OnLayersLoadedListener mListener;
+        private Handler mHandler;
+
+        public SceneLoader(SceneBuilder builder, OnLayersLoadedListener listener) {
+            super(builder);
+            mBuilder = builder;
+            mListener = listener;
+            mHandler = mMainHandler;
+        }
+
+        @Override
+        protected void done() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    publish();
+                }
+            });
+        }
+
+        private void publish() {
+            if (isCancelled() || mSceneLoader != this) {
+                mBuilder.discard();
+                return;
+            }
+            mSceneLoader = null;
+            if (getCallback() == null) {
+                // detached in the meantime
+                mBuilder.discard();
+                if (mListener != null) {
+                    mListener.onLayersLoadFailed(PatchworkDrawable.this, 
+                            new CancellationException("no Callback"));
+                }
+                return;
+            }
+            Scene scene;
+            try {
+                scene = get();
+            } catch (InterruptedException e) {
+                mBuilder.discard();
+                return;
+            } catch (ExecutionException e) {
+                Log.d(TAG, "loadLayersAsync failed", e.getCause());
+                if (mListener != null) {
+                    Throwable cause = e.getCause();
+                    mListener.onLayersLoadFailed(PatchworkDrawable.this, 
+                            cause instanceof Exception? (Exception) cause : e);
+                }
+                return;
+            }
+            setScene(scene);
+            if (mListener != null) {
+                mListener.onLayersLoaded(PatchworkDrawable.this);
+            }
+        }
+    }
+
+    /**
+     * Swaps the current layers with the loaded ones
+     */
+    private void setScene(Scene scene) {
+        int numLayers = mLayers.size();
+        for (int i = 0; i < numLayers; i++) {
+            Layer layer = mLayers.get(i);
+            layer.valid = false;
+            releaseDrawable(layer);
+        }
+        for (int k = 0; k < mGroups.size(); k++) {
+            mGroups.get(k).valid = false;
+        }
+        mLayers = scene.layers;
+        mGrid = scene.grid;
+        mLayersByName = scene.layersByName;
+        mLayersById = scene.layersById;
+        mGroups = scene.groups;
+        mGroupsByName = scene.groupsByName;
+        mGroupRangesDirty = true;
+        invalidateStaticContent();
+        mDirtyRect.setEmpty();
+        countInvalidation(RenderStats.INVALIDATE_ALL);
+        invalidateSelf();
+    }
+
+    /**
+     * Creates a buffer through which any thread can change the matrix, 
+     * alpha and visibility of given layers without posting every change
+     * to the main thread, see {@link LayerStateBuffer}. 
+     * 
+     * The values written through the buffer replace the layers' matrices 
+     * (the values are copied into the layers' Matrix objects), alpha and 
+     * visibility when the next frame is drawn. Must be called on the main
+     * thread.
+     * @param layers The layers, their indices in the array are the slots
+     * used with the buffer
+     * @return A new buffer initialized with the current states of the layers
+     */
+    public LayerStateBuffer createLayerStateBuffer(Layer... layers) {
+        Layer[] copy = layers.clone();
+        int size = copy.length;
+        float[] matrices = new float[size * 9];
+        int[] alphas = new int[size];
+        boolean[] visible = new boolean[size];
+        float[] values = mTmpValues;
+        for (int i = 0; i < size; i++) {
+            Layer layer = copy[i];
+            if (layer.matrix != null) {
+                layer.matrix.getValues(values);
+            } else {
+                Arrays.fill(values, 0);
+                values[Matrix.MSCALE_X] = 1;
+                values[Matrix.MSCALE_Y] = 1;
+                values[Matrix.MPERSP_2] = 1;
+            }
+            System.arraycopy(values, 0, matrices, i * 9, 9);
+            alphas[i] = layer.layerAlpha;
+            visible[i] = layer.visible;
+        }
+        LayerStateBuffer buffer = new LayerStateBuffer(this, copy, matrices, alphas, visible);
+        mStateBuffers.add(buffer);
+        return buffer;
+    }
+
+    /**
+     * Stops applying the states written to the buffer, must be called 
+     * on the main thread
+     * @param buffer The buffer created by {@link #createLayerStateBuffer(Layer...)}
+     */
+    public void removeLayerStateBuffer(LayerStateBuffer buffer) {
+        mStateBuffers.remove(buffer);
+    }
+
+    /**
+     * Called by {@link LayerStateBuffer#publish()} on the writer's thread,
+     * posts a single Runnable per frame to the main thread
+     */
+    void onLayerStatesPublished() {
+        if (mStatesPosted.compareAndSet(false, true)) {
+            mMainHandler.post(mApplyStates);
+        }
+    }
+
+    private Runnable mApplyStates = new Runnable() {
+        @Override
+        public void run() {
+            mStatesPosted.set(false);
+            applyLayerStates();
+            flushDirtyRect();
+        }
+    };
+
+    /**
+     * Applies the latest published snapshots of the state buffers, only 
+     * the layers whose states have changed are touched
+     */
+    private void applyLayerStates() {
+        int numBuffers = mStateBuffers.size();
+        float[] values = mTmpValues;
+        RectF dirty = mDirtyRect;
+        for (int b = 0; b < numBuffers; b++) {
+            LayerStateBuffer buffer = mStateBuffers.get(b);
+            LayerStateBuffer.Snapshot snapshot = buffer.take();
+            if (snapshot == null) {
+                continue;
+            }
+            Layer[] layers = buffer.getLayers();
+            int[] applied = buffer.getAppliedVersions();
+            int[] versions = snapshot.versions;
+            for (int slot = 0; slot < layers.length; slot++) {
+                if (versions[slot] == applied[slot]) {
+                    continue;
+                }
+                applied[slot] = versions[slot];
+                Layer layer = layers[slot];
+                if (!layer.valid) {
+                    continue;
+                }
+                int alpha = Math.max(0, Math.min(255, snapshot.alphas[slot]));
+                boolean visible = snapshot.visible[slot];
+                if (alpha != layer.layerAlpha || visible != layer.visible) {
+                    layer.layerAlpha = alpha;
+                    layer.visible = visible;
+                    invalidateStaticContent();
+                }
+                if (layer.matrix == null) {
+                    layer.matrix = new Matrix();
+                }
+                System.arraycopy(snapshot.matrices, slot * 9, values, 0, 9);
+                layer.matrix.setValues(values);
+                layer.transformDirty = true;
+                dirty.union(layer.drawnBounds);
+                if (layer.validate()) {
+                    updateGrid(layer);
+                    invalidateStaticContent();
+                }
+                dirty.union(layer.mappedBounds);
+            }
+        }
+    }
+
+    public Resources getResources() {
+        return mResources;
+    }
+
+    private void checkBounds(Drawable d) {
+        Rect bounds = d.getBounds();
+        if (bounds.isEmpty()) {
+            int iw = d.getIntrinsicWidth();
+            int ih = d.getIntrinsicHeight();
+            if (iw > 0 && ih > 0) {
+                d.setBounds(0, 0, iw, ih);
+            } else {
+                String detailMessage = "drawable bounds are empty, use d.setBounds()";
+                throw new RuntimeException(detailMessage);
+            }
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return getBounds().width();
+    }
+    
+    @Override
+    public int getIntrinsicHeight() {
+        return getBounds().height();
+    }
+    
+    private boolean verifyDrawable(Drawable dr) {
+        return dr == this || findLayerByDrawable(dr) != null;
+    }
+
+    private Layer findLayerByDrawable(Drawable dr) {
+        for (int i = 0; i < mLayers.size(); i++) {
+            Layer layer = mLayers.get(i);
+            if (layer.drawable == dr) {
+                return layer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Invalidates the area covered by the layer
+     */
+    private void invalidateLayer(Layer layer) {
+        invalidateLayer(layer, RenderStats.INVALIDATE_LAYER);
+    }
+
+    /**
+     * Invalidates the area covered by the layer
+     * @param source The reason counted by the {@link RenderStats}
+     */
+    private void invalidateLayer(Layer layer, int source) {
+        countInvalidation(source);
+        layer.getInvalidateBounds(mTmpRect);
+        mDirtyRect.union(mTmpRect);
+        flushDirtyRect();
+    }
+
+    /**
+     * Reports the accumulated dirty rectangle to the Callback, in a batch
+     * it keeps accumulating until {@link #commitBatch()}
+     */
+    private void flushDirtyRect() {
+        RectF r = mDirtyRect;
+        if (r.isEmpty() || mBatchDepth > 0) {
+            return;
+        }
+        // nothing is drawn outside of the bounds
+        Rect bounds = getBounds();
+        if (!r.intersect(bounds.left, bounds.top, bounds.right, bounds.bottom)) {
+            r.setEmpty();
+            return;
+        }
+        Rect dirty = mTmpDirtyRect;
+        Callback cb = getCallback();
+        if (cb instanceof DirtyRectCallback) {
+            r.roundOut(dirty);
+            dirty.inset(-1, -1);
+            ((DirtyRectCallback) cb).invalidateDrawable(this, dirty);
+        } else
+        if (cb instanceof ImageView && ((ImageView) cb).getDrawable() == this && 
+                (Build.VERSION.SDK_INT >= 18 || ((ImageView) cb).getScaleType() == ImageView.ScaleType.MATRIX)) {
+            // before JB MR2 getImageMatrix() returns the matrix set by the user,
+            // not the one used for drawing
+            ImageView iv = (ImageView) cb;
+            Matrix m = iv.getImageMatrix();
+            if (m != null) {
+                m.mapRect(r);
+            }
+            r.roundOut(dirty);
+            dirty.inset(-1, -1);
+            dirty.offset(iv.getPaddingLeft(), iv.getPaddingTop());
+            iv.invalidate(dirty);
+        } else {
+            invalidateSelf();
+        }
+        r.setEmpty();
+    }
+
+    @Override
+    public void unscheduleDrawable(Drawable who, Runnable what) {
+//        Log.d(TAG, "******************** unscheduleDrawable " + who);
+        if (verifyDrawable(who) && what != null) {
+            unscheduleSelf(what);
+        }
+    }
+    
+    @Override
+    public void scheduleDrawable(Drawable who, Runnable what, long when) {
+//        Log.d(TAG, "******************** scheduleDrawable " + who);
+        if (verifyDrawable(who) && what != null) {
+            scheduleSelf(what, when);
+        }
+    }
+    
+    @Override
+    public void invalidateDrawable(Drawable who) {
+//        Log.d(TAG, "******************** invalidateDrawable " + who);
+        if (who == this) {
+            invalidateSelf();
+            return;
+        }
+        Layer layer = findLayerByDrawable(who);
+        if (layer != null) {
+            // a Drawable that invalidates itself is never flattened
+            // nor used as an occluder
+            if (!layer.selfInvalidating) {
+                layer.selfInvalidating = true;
+                invalidateStaticContent();
+            }
+            invalidateLayer(layer, RenderStats.INVALIDATE_DRAWABLE);
+        }
+    }
+    
+    private void init(Context ctx) {
+        mLayers = new ArrayList<Layer>();
+        mLayersByName = new HashMap<String, Layer>();
+        mLayersById = new SparseArray<Layer>();
+        mGroups = new ArrayList<LayerGroup>();
+        mGroupsByName = new HashMap<String, LayerGroup>();
+        mPendingGroups = new ArrayList<LayerGroup>();
+        mGroupDeltaMatrix = new Matrix();
+        mStateBuffers = new ArrayList<LayerStateBuffer>();
+        mInflatedLayers = new ArrayList<DeferredDrawable>();
+        mStatesPosted = new AtomicBoolean();
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mResources = new PatchworkDrawableResources(ctx);
+        mDrawMatrix = new Matrix();
+        mDirtyRect = new RectF();
+        mTmpDirtyRect = new Rect();
+        mFlattenedRuns = new ArrayList<FlattenedRun>();
+        mOccluders = new Layer[MAX_OCCLUDERS];
+        mOccludersDirty = true;
+        mBackgroundBounds = new RectF();
+        mViewport = new RectF();
+        mSuspendedDirtyRect = new RectF();
+        mViewportMatrix = new Matrix();
+        mFlattenedPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mSpriteBatch = new SpriteBatch();
+        mTimeSource = ANIMATION_TIME;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        RenderStats stats = mStats;
+        long drawStart = stats != null? System.nanoTime() : 0;
+        boolean layerTiming = stats != null && stats.isLayerHistogramsEnabled();
+        int drawn = 0;
+        int culled = 0;
+        int flattened = 0;
+        int animations = 0;
+        if (mBatchDepth > 0) {
+            applyBatch();
+        }
+        if (mStateBuffers.size() > 0) {
+            // the latest complete snapshot at the frame start
+            applyLayerStates();
+        }
+        FlattenedRun run = null;
+        int runIdx = 0;
+        if (mFlatteningEnabled) {
+            if (mFlattenedDirty) {
+                buildFlattenedRuns();
+            }
+            if (mFlattenedRuns.size() > 0) {
+                run = mFlattenedRuns.get(0);
+            }
+        }
+        if (mOccludersDirty) {
+            buildOccluders();
+        }
+        if (run != null && run.background) {
+            run.draw(canvas, mFlattenedPaint);
+        } else {
+            drawBackground(canvas);
+        }
+        float canvasScale = 1;
+        if (mMipmappingEnabled) {
+            canvas.getMatrix(mCanvasMatrix);
+            canvasScale = getScale(mCanvasMatrix, mTmpValues);
+        }
+        boolean suspended = false;
+        boolean pendingAnimations = false;
+        boolean runDrawn = run != null && run.background;
+        boolean viewportValid = false;
+        SpriteBatch batch = SpriteBatch.isSupported(canvas)? mSpriteBatch : null;
+        long currentTime = mTimeSource.currentTimeMillis();
+        mLastFrameTime = SystemClock.uptimeMillis();
+        mFrameId++;
+        if (mGroupRangesDirty) {
+            updateGroupRanges();
+        }
+        if (mNumKeyframeLayers > 0) {
+            pendingAnimations = evaluateKeyframes(currentTime);
+        }
+        int numLayers = mLayers.size();
+        for (int i = 0; i < numLayers; i++) {
+            Layer layer = mLayers.get(i);
+            if (layer.validate()) {
+                mGrid.update(layer);
+                invalidateStaticContent();
+            }
+            if (!layer.visible) {
+                continue;
+            }
+            while (run != null && i >= run.end) {
+                runIdx++;
+                run = runIdx < mFlattenedRuns.size()? mFlattenedRuns.get(runIdx) : null;
+                runDrawn = false;
+            }
+            if (run != null && i >= run.start) {
+                // static layer already rasterized in the run's bitmap
+                if (!runDrawn) {
+                    if (batch != null) {
+                        batch.flush(canvas);
+                    }
+                    run.draw(canvas, mFlattenedPaint);
+                    runDrawn = true;
+                }
+                flattened++;
+                layer.updateDrawnBounds(layer.worldMatrix, false, mDirtyRect);
+                addGroupBounds(layer.group, layer.drawnBounds, false);
+                continue;
+            }
+            LayerGroup group = layer.group;
+            if (group != null && group.start == i) {
+                LayerGroup culledGroup = findCulledGroup(canvas, group, i);
+                if (culledGroup != null) {
+                    addGroupBounds(culledGroup.parent, culledGroup.bounds, false);
+                    culled += culledGroup.end - i;
+                    i = culledGroup.end - 1;
+                    continue;
+                }
+            }
+            boolean groupAnimated = group != null && group.updateFrame(currentTime, mFrameId);
+            boolean running = false;
+            if (layer.animation != null) {
+                boolean suspendable = !groupAnimated && !layer.keyframeRunning && layer.animation.hasStarted();
+                if (suspendable && !viewportValid) {
+                    updateViewport(canvas);
+                    viewportValid = true;
+                }
+                if (suspendable && !RectF.intersects(mViewport, layer.drawnBounds)) {
+                    // the last frame is offscreen: do not evaluate the animation
+                    // here, it is advanced at a lower rate by mSuspendedTick
+                    layer.suspended = true;
+                    suspended = true;
+                    addGroupBounds(group, layer.drawnBounds, true);
+                    culled++;
+                    animations++;
+                    continue;
+                }
+                layer.suspended = false;
+                running = stepAnimation(layer, currentTime);
+            }
+            Matrix drawMatrix = layer.worldMatrix;
+            int alpha = layer.getStaticAlpha();
+            boolean moving = running || groupAnimated || layer.keyframeRunning;
+            if (moving) {
+                pendingAnimations = true;
+                animations++;
+                // animation is running: draw animation frame
+                drawMatrix = getFrameMatrix(layer, groupAnimated, running);
+                float frameAlpha = groupAnimated? group.frameAlpha * layer.layerAlpha / 255f : alpha / 255f;
+                if (layer.keyframeRunning) {
+                    frameAlpha *= layer.keyframeFrame[KeyframeAnimation.FRAME_ALPHA];
+                }
+                if (running) {
+                    frameAlpha *= layer.transformation.getAlpha();
+                }
+                alpha = (int) (255 * frameAlpha);
+//Log.d(TAG, "onDraw ********** [" + i + "], alpha: " + alpha + ", matrix: " + animationFrameMatrix);
+            }
+            layer.updateDrawnBounds(drawMatrix, moving, mDirtyRect);
+            addGroupBounds(group, layer.drawnBounds, moving || !layer.isStatic());
+            if (!canvas.quickReject(layer.drawnBounds, Canvas.EdgeType.AA) && 
+                    !isOccluded(layer.drawnBounds, i)) {
+                long layerStart = layerTiming? System.nanoTime() : 0;
+                int level = mMipmappingEnabled? getMipmapLevel(layer, drawMatrix, canvasScale) : 0;
+                if (layer.sprite != null && 
+                        (moving? isScaleTranslate(drawMatrix, mTmpValues) : layer.scaleTranslate)) {
+                    drawSprite(canvas, batch, layer.sprite, layer.drawnBounds, alpha, level);
+                } else {
+                    if (batch != null) {
+                        batch.flush(canvas);
+                    }
+                    if (level > 0 && isMipmappable(layer.drawable)) {
+                        drawMipmap(canvas, (BitmapDrawable) layer.drawable, drawMatrix, alpha, level);
+                    } else {
+                        draw(canvas, layer.drawable, drawMatrix, alpha);
+                    }
+                }
+                if (layerTiming) {
+                    layer.addDrawTime(System.nanoTime() - layerStart);
+                }
+                drawn++;
+            } else {
+                culled++;
+            }
+        }
+        if (batch != null) {
+            batch.finish(canvas);
+        }
+        commitGroupBounds();
+        clearPendingGroups();
+        // invalidate the areas of moved or pending animated layers
+        if (pendingAnimations && mFrameInterval > 0) {
+            scheduleNextFrame();
+        } else {
+            flushDirtyRect();
+        }
+        if (suspended) {
+            scheduleSuspendedTick();
+        }
+        if (mLayerMemoryBudget > 0 && mInflatedSize > mLayerMemoryBudget) {
+            if (!viewportValid) {
+                updateViewport(canvas);
+            }
+            evictLayers(mLayerMemoryBudget, true);
+        }
+        if (stats != null) {
+            stats.endFrame(System.nanoTime() - drawStart, drawn, culled, flattened, animations);
+            if (mStatsListener != null) {
+                mStatsListener.onFrameStats(this, stats);
+            }
+        }
+    }
+
+    /**
+     * @return The outermost group starting at given layer index that is 
+     * completely outside of the clip and can be skipped as a whole, or null
+     */
+    private LayerGroup findCulledGroup(Canvas canvas, LayerGroup group, int index) {
+        LayerGroup culled = null;
+        for (LayerGroup g = group; g != null && g.start == index; g = g.parent) {
+            if (g.cullable && g.boundsVersion == g.validate() && g.end - g.start == g.count && 
+                    canvas.quickReject(g.bounds, Canvas.EdgeType.AA)) {
+                culled = g;
+            }
+        }
+        return culled;
+    }
+
+    /**
+     * Accumulates the drawn bounds into the aggregate bounds of the group 
+     * and its ancestors for the current frame
+     * @param dynamic true if the bounds may change without any call to
+     * the layer or group (running animations, self invalidating Drawables)
+     */
+    private void addGroupBounds(LayerGroup group, RectF bounds, boolean dynamic) {
+        for (LayerGroup g = group; g != null; g = g.parent) {
+            if (g.boundsFrameId != mFrameId) {
+                g.boundsFrameId = mFrameId;
+                g.nextBounds.set(bounds);
+                g.nextDynamic = dynamic;
+            } else {
+                g.nextBounds.union(bounds);
+                g.nextDynamic |= dynamic;
+            }
+        }
+    }
+
+    /**
+     * Stores the aggregate bounds of the groups drawn in the current frame,
+     * only groups with no dynamic content can be culled in the next frame
+     */
+    private void commitGroupBounds() {
+        int numGroups = mGroups.size();
+        for (int k = 0; k < numGroups; k++) {
+            LayerGroup g = mGroups.get(k);
+            if (g.boundsFrameId == mFrameId) {
+                g.bounds.set(g.nextBounds);
+                g.boundsVersion = g.validate();
+                g.boundsMatrix.set(g.worldMatrix);
+                g.cullable = !g.nextDynamic;
+            }
+        }
+    }
+
+    /**
+     * Delays the invalidation of the dirty rectangle to respect the
+     * maximum frame rate
+     */
+    private void scheduleNextFrame() {
+        // a time in the past means the frame has already been triggered 
+        // (or the Runnable got lost when the Callback changed)
+        long now = SystemClock.uptimeMillis();
+        if (now >= mNextFrameTime) {
+            mNextFrameTime = Math.max(now + 1, mLastFrameTime + mFrameInterval);
+            scheduleSelf(mNextFrame, mNextFrameTime);
+        }
+    }
+
+    private Runnable mNextFrame = new Runnable() {
+        @Override
+        public void run() {
+            countInvalidation(RenderStats.INVALIDATE_ANIMATION);
+            flushDirtyRect();
+        }
+    };
+
+    /**
+     * Computes the part of the drawable bounds within the canvas surface.
+     * Unlike the clip it does not shrink when only a dirty rectangle is 
+     * redrawn, so the animated layers outside of it are not suspended.
+     */
+    private void updateViewport(Canvas canvas) {
+        RectF viewport = mViewport;
+        Matrix inverse = mViewportMatrix;
+        Rect bounds = getBounds();
+        canvas.getMatrix(inverse);
+        if (!inverse.invert(inverse)) {
+            viewport.set(bounds);
+            return;
+        }
+        viewport.set(0, 0, canvas.getWidth(), canvas.getHeight());
+        inverse.mapRect(viewport);
+        if (!viewport.intersect(bounds.left, bounds.top, bounds.right, bounds.bottom)) {
+            viewport.setEmpty();
+        }
+    }
+
+    private void scheduleSuspendedTick() {
+        // a tick time in the past means it has already run (or got lost
+        // when the Callback changed) 
+        long now = SystemClock.uptimeMillis();
+        if (now >= mSuspendedTickTime) {
+            mSuspendedTickTime = now + SUSPENDED_ANIMATION_INTERVAL;
+            scheduleSelf(mSuspendedTick, mSuspendedTickTime);
+        }
+    }
+
+    /**
+     * Evaluates the layer's animation at given time, the frame is stored 
+     * in layer.transformation
+     * @return true if the animation is still running
+     */
+    private boolean stepAnimation(Layer layer, long currentTime) {
+        Animation a = layer.animation;
+        if (!a.isInitialized()) {
+            Rect bounds = layer.drawable.getBounds();
+            Drawable parentDrawable = mBackground;
+            if (parentDrawable != null) {
+                Rect parentBounds = parentDrawable.getBounds();
+                a.initialize(bounds.width(), bounds.height(), parentBounds.width(), parentBounds.height());
+            } else {
+                a.initialize(bounds.width(), bounds.height(), 0, 0);
+            }
+        }
+        boolean running = a.getTransformation(currentTime, layer.transformation);
+        if (!running) {
+            // animation ended: set it to null
+            layer.animation = null;
+            invalidateStaticContent();
+        }
+        return running;
+    }
+
+    /**
+     * @return The world matrix of the layer concatenated with the current 
+     * animation frames of its groups and/or its own one
+     */
+    private Matrix getFrameMatrix(Layer layer, boolean groupAnimated, boolean running) {
+        Matrix m = mDrawMatrix;
+        if (groupAnimated) {
+            m.set(layer.group.frameMatrix);
+            if (layer.matrix != null) {
+                m.preConcat(layer.matrix);
+            }
+        } else {
+            m.set(layer.worldMatrix);
+        }
+        if (layer.keyframeRunning) {
+            m.preConcat(layer.keyframeMatrix);
+        }
+        if (running) {
+            m.preConcat(layer.transformation.getMatrix());
+        }
+        return m;
+    }
+
+    /**
+     * Evaluates the keyframe animations of all layers in a single pass, 
+     * the layers whose animations have ended or were stopped are dropped 
+     * from the list
+     * @return true if any keyframe animation is running
+     */
+    private boolean evaluateKeyframes(long currentTime) {
+        Layer[] layers = mKeyframeLayers;
+        int numLayers = mNumKeyframeLayers;
+        int numRunning = 0;
+        for (int i = 0; i < numLayers; i++) {
+            Layer layer = layers[i];
+            KeyframeAnimation a = layer.keyframes;
+            if (a != null && layer.valid) {
+                if (layer.keyframeStartTime < 0) {
+                    layer.keyframeStartTime = currentTime;
+                }
+                if (a.evaluate(currentTime - layer.keyframeStartTime, layer.keyframeFrame)) {
+                    layer.keyframeMatrix.setValues(layer.keyframeFrame);
+                    layer.keyframeRunning = true;
+                    layers[numRunning++] = layer;
+                    continue;
+                }
+                // animation ended
+                layer.keyframes = null;
+                invalidateStaticContent();
+            }
+            layer.keyframeRunning = false;
+            layer.keyframeActive = false;
+        }
+        for (int i = numRunning; i < numLayers; i++) {
+            layers[i] = null;
+        }
+        mNumKeyframeLayers = numRunning;
+        return numRunning > 0;
+    }
+
+    private void addKeyframeLayer(Layer layer) {
+        if (layer.keyframeActive) {
+            return;
+        }
+        if (mKeyframeLayers == null) {
+            mKeyframeLayers = new Layer[16];
+        } else
+        if (mNumKeyframeLayers == mKeyframeLayers.length) {
+            Layer[] layers = new Layer[mNumKeyframeLayers * 2];
+            System.arraycopy(mKeyframeLayers, 0, layers, 0, mNumKeyframeLayers);
+            mKeyframeLayers = layers;
+        }
+        mKeyframeLayers[mNumKeyframeLayers++] = layer;
+        layer.keyframeActive = true;
+    }
+
+    /**
+     * Advances the animations of the offscreen layers: if such a layer
+     * comes back into the view its area gets invalidated and it is drawn 
+     * normally again, if its animation ends it stops being advanced
+     */
+    private Runnable mSuspendedTick = new Runnable() {
+        @Override
+        public void run() {
+            long currentTime = mTimeSource.currentTimeMillis();
+            boolean pending = false;
+            RectF dirty = mSuspendedDirtyRect;
+            dirty.setEmpty();
+            int numLayers = mLayers.size();
+            for (int i = 0; i < numLayers; i++) {
+                Layer layer = mLayers.get(i);
+                if (!layer.suspended) {
+                    continue;
+                }
+                if (layer.animation == null) {
+                    layer.suspended = false;
+                    continue;
+                }
+                boolean running = stepAnimation(layer, currentTime);
+                layer.updateDrawnBounds(running? getFrameMatrix(layer, false, true) : layer.worldMatrix, running, dirty);
+                if (running) {
+                    pending = true;
+                } else {
+                    layer.suspended = false;
+                }
+            }
+            // only the frames coming back into the viewport need redrawing
+            if (dirty.intersect(mViewport)) {
+                mDirtyRect.union(dirty);
+                flushDirtyRect();
+            }
+            if (pending) {
+                scheduleSuspendedTick();
+            }
+        }
+    };
+    
+    /**
+     * Marks the cached data depending on the static layers (flattened
+     * bitmaps, occluders) as invalid
+     */
+    private void invalidateStaticContent() {
+        mFlattenedDirty = true;
+        mOccludersDirty = true;
+        // the aggregate bounds of the groups are collected again
+        for (int k = 0; k < mGroups.size(); k++) {
+            mGroups.get(k).cullable = false;
+        }
+    }
+
+    /**
+     * Finds (up to {@link #MAX_OCCLUDERS} largest) static, opaque and axis
+     * aligned layers that hide everything below them
+     */
+    private void buildOccluders() {
+        mOccludersDirty = false;
+        Layer[] occluders = mOccluders;
+        int numOccluders = 0;
+        for (int i = mLayers.size() - 1; i >= 0; i--) {
+            Layer layer = mLayers.get(i);
+            layer.validate();
+            if (!layer.visible || !layer.isStatic() || !layer.worldMatrix.rectStaysRect() || 
+                    layer.getStaticAlpha() != 255 || !isOpaqueFill(layer.drawable)) {
+                continue;
+            }
+            // only fully covered pixels occlude, skip anti aliased edges
+            RectF b = layer.mappedBounds;
+            RectF r = layer.occluderRect;
+            r.set((float) Math.ceil(b.left), (float) Math.ceil(b.top), 
+                    (float) Math.floor(b.right), (float) Math.floor(b.bottom));
+            if (r.isEmpty()) {
+                continue;
+            }
+            if (numOccluders < MAX_OCCLUDERS) {
+                occluders[numOccluders++] = layer;
+            } else {
+                int smallest = 0;
+                for (int k = 1; k < MAX_OCCLUDERS; k++) {
+                    if (area(occluders[k].occluderRect) < area(occluders[smallest].occluderRect)) {
+                        smallest = k;
+                    }
+                }
+                if (area(r) > area(occluders[smallest].occluderRect)) {
+                    occluders[smallest] = layer;
+                }
+            }
+        }
+        for (int k = numOccluders; k < MAX_OCCLUDERS; k++) {
+            occluders[k] = null;
+        }
+        mNumOccluders = numOccluders;
+    }
+
+    /**
+     * @return true if the Drawable paints every pixel of its bounds opaque
+     */
+    private static boolean isOpaqueFill(Drawable d) {
+        if (d.getOpacity() != PixelFormat.OPAQUE) {
+            return false;
+        }
+        // a non FILL gravity draws the Bitmap in a part of the bounds only
+        return !(d instanceof BitmapDrawable) || ((BitmapDrawable) d).getGravity() == Gravity.FILL;
+    }
+
+    private static float area(RectF r) {
+        return r.width() * r.height();
+    }
+
+    /**
+     * Tests if given bounds are hidden by an opaque layer above z-order index
+     */
+    private boolean isOccluded(RectF bounds, int index) {
+        for (int k = 0; k < mNumOccluders; k++) {
+            Layer occluder = mOccluders[k];
+            if (occluder.index > index && occluder.occluderRect.contains(bounds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Draws the background except the parts covered by the occluders
+     */
+    private void drawBackground(Canvas canvas) {
+        RectF bounds = mBackgroundBounds;
+        bounds.set(mBackground.getBounds());
+        if (mNumOccluders == 0) {
+            mBackground.draw(canvas);
+            return;
+        }
+        if (isOccluded(bounds, -1)) {
+            return;
+        }
+        canvas.save(Canvas.CLIP_SAVE_FLAG);
+        for (int k = 0; k < mNumOccluders; k++) {
+            RectF r = mOccluders[k].occluderRect;
+            if (RectF.intersects(r, bounds)) {
+                canvas.clipRect(r, Region.Op.DIFFERENCE);
+            }
+        }
+        mBackground.draw(canvas);
+        canvas.restore();
+    }
+
+    /**
+     * Rasterizes the background and the contiguous runs of static layers
+     */
+    private void buildFlattenedRuns() {
+        recycleFlattenedRuns();
+        mFlattenedDirty = false;
+        ArrayList<Layer> layers = mLayers;
+        int numLayers = layers.size();
+        int start = 0;
+        boolean background = true;
+        for (int i = 0; i <= numLayers; i++) {
+            Layer layer = i < numLayers? layers.get(i) : null;
+            if (layer != null) {
+                layer.validate();
+                layer.flattened = false;
+                // rasterizing a lazy layer would inflate it even if offscreen
+                if (layer.isStatic() && !(layer.drawable instanceof DeferredDrawable)) {
+                    continue;
+                }
+            }
+            // [start, i) is a run of static layers
+            int numDrawables = i - start + (background? 1 : 0);
+            if (numDrawables >= 2 && getRunBounds(start, i, background, mTmpDirtyRect)) {
+                mFlattenedRuns.add(new FlattenedRun(start, i, background, mTmpDirtyRect));
+            }
+            start = i + 1;
+            background = false;
+        }
+    }
+
+    /**
+     * Computes the area of the run within the Drawable's bounds
+     * @return false if the area is empty or too large to be cached
+     */
+    private boolean getRunBounds(int start, int end, boolean background, Rect out) {
+        RectF bounds = mTmpRect;
+        if (background) {
+            bounds.set(mBackground.getBounds());
+        } else {
+            bounds.setEmpty();
+        }
+        for (int i = start; i < end; i++) {
+            Layer layer = mLayers.get(i);
+            if (layer.visible) {
+                bounds.union(layer.mappedBounds);
+            }
+        }
+        bounds.roundOut(out);
+        if (!out.intersect(getBounds())) {
+            return false;
+        }
+        return (long) out.width() * out.height() <= MAX_FLATTENED_PIXELS;
+    }
+
+    private void recycleFlattenedRuns() {
+        for (int i = 0; i < mFlattenedRuns.size(); i++) {
+            mFlattenedRuns.get(i).bitmap.recycle();
+        }
+        mFlattenedRuns.clear();
+    }
+
+    /**
+     * The background and/or a contiguous run of static layers rasterized
+     * into a Bitmap
+     */
+    private class FlattenedRun {
+        private int start;
+        private int end;
+        private boolean background;
+        private Bitmap bitmap;
+        private float left;
+        private float top;
+
+        /**
+         * @param r The area of the run, see {@link PatchworkDrawable#getRunBounds}
+         */
+        public FlattenedRun(int start, int end, boolean background, Rect r) {
+            this.start = start;
+            this.end = end;
+            this.background = background;
+            left = r.left;
+            top = r.top;
+            bitmap = Bitmap.createBitmap(r.width(), r.height(), Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(bitmap);
+            canvas.translate(-left, -top);
+            if (background) {
+                mBackground.draw(canvas);
+            }
+            for (int i = start; i < end; i++) {
+                Layer layer = mLayers.get(i);
+                if (layer.visible) {
+                    PatchworkDrawable.this.draw(canvas, layer.drawable, layer.worldMatrix, layer.getStaticAlpha());
+                }
+                layer.flattened = true;
+            }
+        }
+
+        public void draw(Canvas canvas, Paint paint) {
+            canvas.drawBitmap(bitmap, left, top, paint);
+        }
+    }
+
+    /**
+     * Draws the atlas frame directly into its mapped bounds
+     * @param batch The batch queuing the frame or null to draw it now
+     */
+    private void drawSprite(Canvas canvas, SpriteBatch batch, AtlasDrawable sprite, RectF dst, int alpha, int level) {
+        Atlas atlas = sprite.getAtlas();
+        ColorFilter cf = sprite.getSpriteColorFilter();
+        Bitmap bitmap = atlas.getBitmap();
+        Rect src = sprite.getSrc();
+        if (level > 0) {
+            Bitmap mipmap = MipmapCache.get(bitmap, level);
+            if (mipmap != bitmap) {
+                // the frame within the downsampled sheet
+                float sx = (float) mipmap.getWidth() / bitmap.getWidth();
+                float sy = (float) mipmap.getHeight() / bitmap.getHeight();
+                mTmpSrc.set(Math.round(src.left * sx), Math.round(src.top * sy), 
+                        Math.round(src.right * sx), Math.round(src.bottom * sy));
+                src = mTmpSrc;
+                bitmap = mipmap;
+            }
+        }
+        if (batch != null) {
+            batch.add(canvas, bitmap, src, dst, alpha, cf);
+        } else {
+            Paint paint = atlas.mPaint;
+            paint.setAlpha(alpha);
+            paint.setColorFilter(cf);
+            canvas.drawBitmap(bitmap, src, dst, paint);
+        }
+    }
+
+    /**
+     * Draws the BitmapDrawable from a downsampled level of its Bitmap
+     */
+    private void drawMipmap(Canvas canvas, BitmapDrawable drawable, Matrix matrix, int alpha, int level) {
+        Bitmap mipmap = MipmapCache.get(drawable.getBitmap(), level);
+        canvas.save(Canvas.MATRIX_SAVE_FLAG);
+        if (!matrix.isIdentity()) {
+            canvas.concat(matrix);
+        }
+        drawable.setAlpha(alpha);
+        canvas.drawBitmap(mipmap, null, drawable.getBounds(), drawable.getPaint());
+        canvas.restore();
+    }
+
+    /**
+     * @return true if the Drawable is a BitmapDrawable drawn by stretching
+     * the whole Bitmap to its bounds
+     */
+    private static boolean isMipmappable(Drawable d) {
+        if (!(d instanceof BitmapDrawable)) {
+            return false;
+        }
+        BitmapDrawable bd = (BitmapDrawable) d;
+        return bd.getBitmap() != null && bd.getTileModeX() == null && 
+                bd.getTileModeY() == null && bd.getGravity() == Gravity.FILL;
+    }
+
+    /**
+     * @return The mipmap level matching the scale of the layer's Bitmap
+     * (or atlas frame) pixels: the ratio of the Drawable bounds to the 
+     * Bitmap size combined with the scale of the matrix and the Canvas,
+     * 0 if not scaled down by half or more or not mipmappable
+     */
+    private int getMipmapLevel(Layer layer, Matrix m, float canvasScale) {
+        int width;
+        int height;
+        if (layer.sprite != null) {
+            Rect src = layer.sprite.getSrc();
+            width = src.width();
+            height = src.height();
+        } else
+        if (isMipmappable(layer.drawable)) {
+            Bitmap bitmap = ((BitmapDrawable) layer.drawable).getBitmap();
+            width = bitmap.getWidth();
+            height = bitmap.getHeight();
+        } else {
+            return 0;
+        }
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        Rect bounds = layer.cachedDrawableBounds;
+        // the less minified axis, so no axis is drawn blurry
+        float density = Math.max((float) bounds.width() / width, (float) bounds.height() / height);
+        float scale = getScale(m, mTmpValues) * canvasScale * density;
+        int level = 0;
+        while (scale <= 0.5f && level < MipmapCache.MAX_LEVEL) {
+            scale *= 2;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * @return The bigger of the X and Y scale factors of the matrix
+     */
+    private static float getScale(Matrix m, float[] values) {
+        m.getValues(values);
+        float sx = (float) Math.hypot(values[Matrix.MSCALE_X], values[Matrix.MSKEW_Y]);
+        float sy = (float) Math.hypot(values[Matrix.MSKEW_X], values[Matrix.MSCALE_Y]);
+        return Math.max(sx, sy);
+    }
+
+    /**
+     * @return true if the matrix only scales (by positive factors) and translates
+     */
+    private static boolean isScaleTranslate(Matrix m, float[] values) {
+        m.getValues(values);
+        return values[Matrix.MSKEW_X] == 0 && values[Matrix.MSKEW_Y] == 0 &&
+                values[Matrix.MSCALE_X] > 0 && values[Matrix.MSCALE_Y] > 0 &&
+                values[Matrix.MPERSP_0] == 0 && values[Matrix.MPERSP_1] == 0;
+    }
+
+    private void draw(Canvas canvas, Drawable drawable, Matrix matrix, int alpha) {
+        canvas.save(Canvas.MATRIX_SAVE_FLAG);
+        if (!matrix.isIdentity()) {
+            canvas.concat(matrix);
+        }
+        drawable.setAlpha(alpha);
+        drawable.draw(canvas);
+        canvas.restore();
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        invalidateStaticContent();
+        mBackground.setAlpha(alpha);
+        int numLayers = mLayers.size();
+        for (int i = 0; i < numLayers; i++) {
+            Layer layer = mLayers.get(i);
+            layer.getDrawable().setAlpha(alpha);
+        }
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter cf) {
+        invalidateStaticContent();
+        mBackground.setColorFilter(cf);
+        int numLayers = mLayers.size();
+        for (int i = 0; i < numLayers; i++) {
+            Layer layer = mLayers.get(i);
+            layer.getDrawable().setColorFilter(cf);
+        }
+    }
+
+    @Override
+    public int getOpacity() {
+        if (mBackground.getOpacity() == PixelFormat.OPAQUE) {
+            return PixelFormat.OPAQUE;
+        }
+        // an opaque layer may cover the whole Drawable
+        if (mOccludersDirty) {
+            buildOccluders();
+        }
+        mBackgroundBounds.set(getBounds());
+        if (isOccluded(mBackgroundBounds, -1)) {
+            return PixelFormat.OPAQUE;
+        }
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    public class Layer {
+        private Drawable drawable;
+        private Animation animation;
+        private Transformation transformation;
+        private Matrix matrix;
+        private boolean valid;
+        private String layerName;
+        private int layerId;
+        private RectF drawnBounds = new RectF();
+        private RectF previousBounds = new RectF();
+        private RectF mappedBounds = new RectF();
+        private Matrix worldMatrix = new Matrix();
+        private Matrix inverseMatrix = new Matrix();
+        private boolean invertible;
+        private Rect cachedDrawableBounds = new Rect();
+        private boolean transformDirty = true;
+        private boolean scaleTranslate;
+        private AtlasDrawable sprite;
+        private boolean selfInvalidating;
+        private boolean flattened;
+        private boolean suspended;
+        private RectF occluderRect = new RectF();
+        private Rect cells = new Rect();
+        private int index;
+        private LayerGroup group;
+        private int cachedGroupVersion;
+        private int z;
+        private int layerAlpha = 255;
+        private boolean visible = true;
+        private boolean alphaHitTest;
+        private int[] drawTimeHistogram;
+        private KeyframeAnimation keyframes;
+        private long keyframeStartTime;
+        private float[] keyframeFrame;
+        private Matrix keyframeMatrix;
+        private boolean keyframeRunning;
+        private boolean keyframeActive;
+        
+        public void parseInner(Resources res, XmlResourceParser parser, AttributeSet attrset) throws XmlPullParserException, IOException {
+            LayerInfo info = new LayerInfo();
+            LayersParser.parseInner(res, parser, attrset, info);
+            apply(info);
+        }
+
+        /**
+         * Applies the parsed matrix and bounds
+         */
+        private void apply(LayerInfo info) {
+            if (info.matrix != null) {
+                matrix = info.matrix;
+            }
+            if (info.bounds != null) {
+                drawable.setBounds(info.bounds);
+            }
+            transformDirty = true;
+        }
+
+        private Layer(Drawable d, String name, int id) {
+            drawable = d;
+            transformation = new Transformation();
+            valid = true;
+            layerName = name;
+            layerId = id;
+            sprite = d instanceof AtlasDrawable? (AtlasDrawable) d : null;
+            if (d instanceof DeferredDrawable) {
+                ((DeferredDrawable) d).layer = this;
+            }
+            d.setCallback(PatchworkDrawable.this);
+            BitmapPool.acquire(d);
+        }
+        
+        private Layer(Drawable d, Matrix m) {
+            drawable = d;
+            transformation = new Transformation();
+            matrix = m;
+            valid = true;
+            checkBounds(d);
+            sprite = d instanceof AtlasDrawable? (AtlasDrawable) d : null;
+            if (d instanceof DeferredDrawable) {
+                ((DeferredDrawable) d).layer = this;
+            }
+            d.setCallback(PatchworkDrawable.this);
+            BitmapPool.acquire(d);
+        }
+
+        /**
+         * Starts layer animation
+         * @param Animation to start
+         * @throws RuntimeException
+         */
+        public void startLayerAnimation(Animation a) throws RuntimeException {
+            if (!valid) {
+                String detailMessage = "this layer has already been removed";
+                throw new RuntimeException(detailMessage);
+            }
+            transformation.clear();
+            animation = a;
+            suspended = false;
+            invalidateStaticContent();
+            if (a != null) {
+                a.start();
+            }
+            // the first animation frame can be anywhere
+            invalidateAll();
+        }
+
+        /**
+         * Stops layer animation
+         * @throws RuntimeException
+         */
+        public void stopLayerAnimation() throws RuntimeException {
+            if (!valid) {
+                String detailMessage = "this layer has already been removed";
+                throw new RuntimeException(detailMessage);
+            }
+            if (animation != null) {
+                animation = null;
+                invalidateStaticContent();
+                invalidateLayer(this);
+            }
+        }
+
+        /**
+         * Starts keyframe animation, it is applied on top of the layer's 
+         * matrix (and below the animation started with 
+         * {@link #startLayerAnimation(Animation)}, if any). The same 
+         * KeyframeAnimation can be started on any number of layers.
+         * @param a KeyframeAnimation to start
+         * @throws RuntimeException
+         */
+        public void startKeyframeAnimation(KeyframeAnimation a) throws RuntimeException {
+            if (!valid) {
+                String detailMessage = "this layer has already been removed";
+                throw new RuntimeException(detailMessage);
+            }
+            if (a == null) {
+                stopKeyframeAnimation();
+                return;
+            }
+            if (keyframeFrame == null) {
+                keyframeFrame = new float[KeyframeAnimation.FRAME_SIZE];
+                keyframeMatrix = new Matrix();
+            }
+            keyframes = a;
+            // started on the first frame drawn
+            keyframeStartTime = -1;
+            addKeyframeLayer(this);
+            invalidateStaticContent();
+            // the first animation frame can be anywhere
+            invalidateAll();
+        }
+
+        /**
+         * Stops keyframe animation
+         * @throws RuntimeException
+         */
+        public void stopKeyframeAnimation() throws RuntimeException {
+            if (!valid) {
+                String detailMessage = "this layer has already been removed";
+                throw new RuntimeException(detailMessage);
+            }
+            if (keyframes != null) {
+                keyframes = null;
+                keyframeRunning = false;
+                invalidateStaticContent();
+                invalidateLayer(this);
+            }
+        }
+
+        /**
+         * Sets a new matrix of this layer
+         * @param m Matrix to apply to the Drawable (or null if none)
+         */
+        public void setMatrix(Matrix m) {
+            matrix = m;
+            invalidate();
+        }
+
+        /**
+         * Get a Matrix of this layer
+         * @return Matrix applied to the Drawable (or null if none)
+         */
+        public Matrix getMatrix() {
+            return matrix;
+        }
+
+        /**
+         * Call it when the Matrix of this layer has been modified in place:
+         * the layer caches its transformation so the changes are not visible
+         * otherwise. Updates the hit testing data and redraws the affected area.
+         * Changes of the Drawable bounds are detected automatically on the 
+         * next {@link PatchworkDrawable#draw(Canvas)}.
+         */
+        public void invalidate() {
+            if (!valid) {
+                return;
+            }
+            transformDirty = true;
+            validate();
+            updateGrid(this);
+            invalidateStaticContent();
+            invalidateLayer(this);
+        }
+
+        /**
+         * Recomputes the cached world matrix, its inverse and the mapped 
+         * bounds if the layer's matrix, the drawable bounds or the world
+         * matrix of its group have changed
+         * @return true if the cached data has been recomputed
+         */
+        private boolean validate() {
+            Rect bounds = drawable.getBounds();
+            int groupVersion = group != null? group.validate() : 0;
+            if (!transformDirty && groupVersion == cachedGroupVersion && 
+                    cachedDrawableBounds.equals(bounds)) {
+                return false;
+            }
+            if (group != null) {
+                worldMatrix.set(group.worldMatrix);
+                if (matrix != null) {
+                    worldMatrix.preConcat(matrix);
+                }
+            } else {
+                worldMatrix.set(matrix);
+            }
+            cachedGroupVersion = groupVersion;
+            invertible = worldMatrix.invert(inverseMatrix);
+            cachedDrawableBounds.set(bounds);
+            mappedBounds.set(bounds);
+            worldMatrix.mapRect(mappedBounds);
+            // may run on the scene loader thread so mTmpValues cannot be used
+            scaleTranslate = sprite != null && isScaleTranslate(worldMatrix, new float[9]);
+            transformDirty = false;
+            return true;
+        }
+
+        /**
+         * @return true if the layer can be rasterized into a cached Bitmap
+         */
+        private boolean isStatic() {
+            return animation == null && keyframes == null && !selfInvalidating && 
+                    (group == null || !group.isAnimated());
+        }
+
+        /**
+         * @return The alpha of the layer when no animation is running
+         */
+        private int getStaticAlpha() {
+            return group != null? group.worldAlpha * layerAlpha / 255 : layerAlpha;
+        }
+
+        private boolean isInGroup(LayerGroup g) {
+            for (LayerGroup parent = group; parent != null; parent = parent.parent) {
+                if (parent == g) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Tests if point (x, y) in the Drawable's coordinates hits this layer
+         */
+        private boolean contains(float x, float y) {
+            if (!visible || !mappedBounds.contains(x, y)) {
+                return false;
+            }
+            if (matrix == null && group == null) {
+                return !alphaHitTest || HitMaskCache.hit(drawable, x, y);
+            }
+            if (!invertible) {
+                return false;
+            }
+            float[] pts = mTmpPts;
+            pts[2] = x;
+            pts[3] = y;
+            inverseMatrix.mapPoints(pts, 2, pts, 2, 1);
+            Rect bounds = cachedDrawableBounds;
+            if (pts[2] < bounds.left || pts[2] >= bounds.right ||
+                    pts[3] < bounds.top || pts[3] >= bounds.bottom) {
+                return false;
+            }
+            return !alphaHitTest || HitMaskCache.hit(drawable, pts[2], pts[3]);
+        }
+
+        /**
+         * Computes the area covered by this layer: the drawable bounds mapped 
+         * by the layer's matrix plus the bounds of the last drawn frame
+         * (they differ when the layer is animated)
+         */
+        private void getInvalidateBounds(RectF out) {
+            validate();
+            out.set(mappedBounds);
+            out.union(drawnBounds);
+        }
+
+        /**
+         * Updates the bounds of the drawn frame and adds the changed 
+         * area (if any) to the dirty rectangle. Only running animation frames
+         * need mapping, otherwise the cached mapped bounds are used.
+         * 
+         * When an animation is running the next frame bounds are not known yet
+         * so like {@link Animation#getInvalidateRegion} the union of the previous 
+         * and current frame is used, additionally extended by the current 
+         * change of every edge (so both the movement and the growth caused by
+         * a scale or rotation) so that the next frame is not clipped.
+         */
+        private void updateDrawnBounds(Matrix drawMatrix, boolean running, RectF dirty) {
+            RectF prev = previousBounds;
+            RectF curr = drawnBounds;
+            prev.set(curr);
+            if (running) {
+                curr.set(cachedDrawableBounds);
+                drawMatrix.mapRect(curr);
+                dirty.union(prev);
+                dirty.union(curr);
+                if (!prev.isEmpty()) {
+                    // never smaller than the current frame, a shrinking one could turn empty
+                    dirty.union(Math.min(curr.left, curr.left + curr.left - prev.left),
+                            Math.min(curr.top, curr.top + curr.top - prev.top),
+                            Math.max(curr.right, curr.right + curr.right - prev.right),
+                            Math.max(curr.bottom, curr.bottom + curr.bottom - prev.bottom));
+                }
+            } else {
+                curr.set(mappedBounds);
+                if (prev.left != curr.left || prev.top != curr.top ||
+                        prev.right != curr.right || prev.bottom != curr.bottom) {
+                    dirty.union(prev);
+                    dirty.union(curr);
+                }
+            }
+        }
+
+        /**
+         * Get a name of this layer
+         * @return The name (android:name attribute) or null if none
+         */
+        public String getName() {
+            return layerName;
+        }
+
+        /**
+         * Get an id of this layer
+         * @return The id (android:id attribute) or 0 if none
+         */
+        public int getId() {
+            return layerId;
+        }
+
+        /**
+         * Get a Drawable for this layer
+         * @return Drawable used by this layer
+         */
+        public Drawable getDrawable() {
+            return drawable;
+        }
+
+        /**
+         * Get a group of this layer
+         * @return The group or null if none
+         */
+        public LayerGroup getGroup() {
+            return group;
+        }
+
+        /**
+         * Sets the z value of this layer. The layers are kept sorted by 
+         * their z values, the layer is moved above all other layers with 
+         * the same z value. Layers with equal z values keep their order.
+         * @param z The z value
+         */
+        public void setZ(int z) {
+            if (!valid || this.z == z) {
+                return;
+            }
+            if (mBatchDepth > 0) {
+                applyBatch();
+            }
+            this.z = z;
+            moveLayerTo(this, findZIndex(this));
+        }
+
+        /**
+         * Sets the alpha of this layer, it is multiplied with the alpha of
+         * its group and its animation
+         * @param alpha The alpha (0..255)
+         */
+        public void setAlpha(int alpha) {
+            alpha = Math.max(0, Math.min(255, alpha));
+            if (!valid || layerAlpha == alpha) {
+                return;
+            }
+            layerAlpha = alpha;
+            invalidateStaticContent();
+            invalidateLayer(this);
+        }
+
+        /**
+         * Get the alpha of this layer
+         * @return The alpha (0..255)
+         */
+        public int getAlpha() {
+            return layerAlpha;
+        }
+
+        /**
+         * Shows or hides this layer, a hidden layer is neither drawn nor 
+         * found by the hit testing
+         * @param visible true to show the layer
+         */
+        public void setVisible(boolean visible) {
+            if (!valid || this.visible == visible) {
+                return;
+            }
+            this.visible = visible;
+            invalidateStaticContent();
+            invalidateLayer(this);
+        }
+
+        /**
+         * @return true if this layer is visible
+         */
+        public boolean isVisible() {
+            return visible;
+        }
+
+        /**
+         * Enables the pixel accurate hit testing: a point within the bounds
+         * hits this layer only if the Drawable is not transparent there.
+         * The alpha masks are built lazily and cached, see {@link HitMaskCache}
+         * @param alphaHitTest true to test the alpha, false to test the bounds only
+         */
+        public void setAlphaHitTest(boolean alphaHitTest) {
+            this.alphaHitTest = alphaHitTest;
+        }
+
+        /**
+         * @return true if the pixel accurate hit testing is enabled
+         */
+        public boolean isAlphaHitTest() {
+            return alphaHitTest;
+        }
+
+        /**
+         * Get the histogram of the times spent drawing this layer, collected
+         * when {@link RenderStats#setLayerHistogramsEnabled(boolean)} is enabled
+         * @return A copy of the histogram or null if this layer has not been
+         * drawn with the histograms enabled
+         */
+        public int[] getDrawTimeHistogram() {
+            return drawTimeHistogram != null? drawTimeHistogram.clone() : null;
+        }
 
-                    int alpha = (int) (255 * layer.transformation.getAlpha());
-//Log.d(TAG, "onDraw ********** [" + i + "], alpha: " + alpha + ", matrix: " + animationFrameMatrix);
-                    draw(canvas, layer.drawable, mDrawMatrix, alpha);
-                    pendingAnimations = true;
-                } else {
-                    // animation ended: set it to null
-                    layer.animation = null;
-                    draw(canvas, layer.drawable, mDrawMatrix, 255);
-                }
+        private void addDrawTime(long time) {
+            if (drawTimeHistogram == null) {
+                drawTimeHistogram = new int[RenderStats.NUM_BUCKETS];
             }
+            RenderStats.addToHistogram(drawTimeHistogram, time);
         }
-        if (pendingAnimations) {
-            // invalidate if any pending animations
-            invalidateSelf();
-        }
-    }
-    
-    private void draw(Canvas canvas, Drawable drawable, Matrix matrix, int alpha) {
-        canvas.save(Canvas.MATRIX_SAVE_FLAG);
-        canvas.concat(matrix);
-        drawable.setAlpha(alpha);
-        drawable.draw(canvas);
-        canvas.restore();
-    }
 
-    @Override
-    public void setAlpha(int alpha) {
-        mBackground.setAlpha(alpha);
-        int numLayers = mLayers.size();
-        for (int i = 0; i < numLayers; i++) {
-            Layer layer = mLayers.get(i);
-            layer.getDrawable().setAlpha(alpha);
+        /**
+         * Get the z value of this layer
+         * @return The z value, 0 by default
+         */
+        public int getZ() {
+            return z;
         }
-    }
 
-    @Override
-    public void setColorFilter(ColorFilter cf) {
-        mBackground.setColorFilter(cf);
-        int numLayers = mLayers.size();
-        for (int i = 0; i < numLayers; i++) {
-            Layer layer = mLayers.get(i);
-            layer.getDrawable().setColorFilter(cf);
+        /**
+         * Get the index of this layer in the z-order
+         * @return The index, 0 for the bottommost layer
+         */
+        public int getIndex() {
+            if (mBatchDepth > 0) {
+                applyBatch();
+            }
+            return index;
         }
-    }
 
-    @Override
-    public int getOpacity() {
-        return PixelFormat.TRANSLUCENT;
+        private PatchworkDrawable getOwner() {
+            return PatchworkDrawable.this;
+        }
     }
 
-    public class Layer {
-        private Drawable drawable;
-        private Animation animation;
-        private Transformation transformation;
+    public class LayerGroup {
+        private LayerGroup parent;
+        private String groupName;
         private Matrix matrix;
-        private boolean valid;
-        private String layerName;
-        
-        public void parseInner(Resources res, XmlResourceParser parser, AttributeSet attrset) throws XmlPullParserException, IOException {
-            int[] attrs = {
-                    R.attr.dx,      // idx 0
-                    R.attr.dy,      // idx 1
-                    R.attr.sx,      // idx 2
-                    R.attr.sy,      // idx 3
-                    R.attr.kx,      // idx 4
-                    R.attr.ky,      // idx 5
-                    R.attr.degrees, // idx 6
-                    R.attr.px,      // idx 7
-                    R.attr.py,      // idx 8
-                    R.attr.left,    // idx 9
-                    R.attr.top,     // idx 10
-                    R.attr.right,   // idx 11
-                    R.attr.bottom,  // idx 12
-                    R.attr.width,   // idx 13
-                    R.attr.height,  // idx 14
-            };
-            final int DX = 0;
-            final int DY = 1;
-            final int SX = 2;
-            final int SY = 3;
-            final int KX = 4;
-            final int KY = 5;
-            final int DEGREES = 6;
-            final int PX = 7;
-            final int PY = 8;
-            final int LEFT = 9;
-            final int TOP = 10;
-            final int RIGHT = 11;
-            final int BOTTOM = 12;
-            final int WIDTH = 13;
-            final int HEIGHT = 14;
-
-            int depth = parser.getDepth();
-            while (true) {
-                int type = parser.next();
-                String name = parser.getName();
-                if (type == XmlPullParser.START_TAG) {
-                    if (name.equals("matrix")) {
-                        Matrix m = new Matrix();
-                        type = parser.next();
-                        name = parser.getName();
-                        while (true) {
-                            if (type == XmlPullParser.START_TAG) {
-                                TypedArray a = res.obtainAttributes(attrset, attrs);
-                                if (name.equals("translate")) {
-                                    float dx = a.getFloat(DX, 0);
-                                    float dy = a.getFloat(DY, 0);
-                                    m.preTranslate(dx, dy);
-                                } else
-                                if (name.equals("scale")) {
-                                    float sx = a.getFloat(SX, 0);
-                                    float sy = a.getFloat(SY, 0);
-                                    float px = a.getFloat(PX, 0);
-                                    float py = a.getFloat(PY, 0);
-                                    m.preScale(sx, sy, px, py);
-                                } else
-                                if (name.equals("rotate")) {
-                                    float degrees = a.getFloat(DEGREES, 0);
-                                    float px = a.getFloat(PX, 0);
-                                    float py = a.getFloat(PY, 0);
-                                    m.preRotate(degrees, px, py);
-                                } else
-                                if (name.equals("skew")) {
-                                    float kx = a.getFloat(KX, 0);
-                                    float ky = a.getFloat(KY, 0);
-                                    float px = a.getFloat(PX, 0);
-                                    float py = a.getFloat(PY, 0);
-                                    m.preSkew(kx, ky, px, py);
-                                } else {
-                                    String msg = parser.getPositionDescription() + ": unexpected tag <" + name + "> found, " +
-                                            "expected are <translate> | <scale> | <rotate> | <skew>";
-                                    throw new XmlPullParserException(msg);
-                                }
-                                a.recycle();
-                            } else
-                            if (type == XmlPullParser.END_TAG && name.equals("matrix")) {
-                                break;
-                            }
-                            type = parser.next();
-                            name = parser.getName();
-                        }
-                        if (!m.isIdentity()) {
-                            matrix = m;
-                        }
-                    }
-                    if (name.equals("bounds")) {
-                        TypedArray a = res.obtainAttributes(attrset, attrs);
-                        int left = a.getInteger(LEFT, 0);
-                        int top = a.getInteger(TOP, 0);
-                        int right = a.getInteger(RIGHT, 0);
-                        int bottom = a.getInteger(BOTTOM, 0);
-                        int width = a.getInteger(WIDTH, 0);
-                        int height = a.getInteger(HEIGHT, 0);
-                        a.recycle();
-                        drawable.setBounds(
-                                left, 
-                                top, 
-                                width > 0? left + width : right, 
-                                height > 0? top + height : bottom);
-                    }
-                }
-                if (parser.getDepth() == depth) {
-                    break;
-                }
-            }
-        }
+        private int alpha;
+        private Animation animation;
+        private Transformation transformation = new Transformation();
+        private boolean valid = true;
+        // composed matrix and alpha of the ancestors and this group
+        private Matrix worldMatrix = new Matrix();
+        private int worldAlpha;
+        private boolean dirty = true;
+        private int version;
+        private int parentVersion;
+        private boolean pending;
+        // composed animation frame of the ancestors and this group
+        private int frameId = -1;
+        private boolean frameAnimated;
+        private Matrix frameMatrix = new Matrix();
+        private float frameAlpha;
+        // range of the layers in the z-order: [start, end)
+        private int start;
+        private int end;
+        private int count;
+        // aggregate bounds of the layers used for culling
+        private RectF bounds = new RectF();
+        private boolean cullable;
+        private RectF nextBounds = new RectF();
+        private boolean nextDynamic;
+        private int boundsFrameId = -1;
+        private int boundsVersion;
+        private Matrix boundsMatrix = new Matrix();
 
-        private Layer(Drawable d, String name) {
-            drawable = d;
-            transformation = new Transformation();
-            valid = true;
-            layerName = name;
-            d.setCallback(PatchworkDrawable.this);
-        }
-        
-        private Layer(Drawable d, Matrix m) {
-            drawable = d;
-            transformation = new Transformation();
+        private LayerGroup(LayerGroup parent, String name, Matrix m, int alpha) {
+            this.parent = parent;
+            groupName = name;
             matrix = m;
-            valid = true;
-            checkBounds(d);
-            d.setCallback(PatchworkDrawable.this);
+            this.alpha = alpha;
         }
 
         /**
-         * Starts layer animation
+         * Starts group animation, it is applied to all the layers of 
+         * this group on top of their own animations
          * @param Animation to start
          * @throws RuntimeException
          */
-        public void startLayerAnimation(Animation a) throws RuntimeException {
+        public void startGroupAnimation(Animation a) throws RuntimeException {
             if (!valid) {
-                String detailMessage = "this layer has already been removed";
+                String detailMessage = "this group has already been removed";
                 throw new RuntimeException(detailMessage);
             }
             transformation.clear();
             animation = a;
+            invalidateStaticContent();
             if (a != null) {
                 a.start();
             }
-            invalidateSelf();
+            // the first animation frame can be anywhere
+            invalidateAll();
         }
 
         /**
-         * Stops layer animation
+         * Stops group animation
          * @throws RuntimeException
          */
-        public void stopLayerAnimation() throws RuntimeException {
+        public void stopGroupAnimation() throws RuntimeException {
             if (!valid) {
-                String detailMessage = "this layer has already been removed";
+                String detailMessage = "this group has already been removed";
                 throw new RuntimeException(detailMessage);
             }
             if (animation != null) {
                 animation = null;
-                invalidateSelf();
+                invalidateGroup(this, true);
             }
         }
 
         /**
-         * Get a Drawable for this layer
-         * @return Drawable used by this layer
+         * Sets a new matrix of this group
+         * @param m Matrix applied to the layers and nested groups (or null if none)
          */
-        public Drawable getDrawable() {
-            return drawable;
+        public void setMatrix(Matrix m) {
+            matrix = m;
+            invalidate();
+        }
+
+        /**
+         * Get a Matrix of this group
+         * @return Matrix applied to the layers and nested groups (or null if none)
+         */
+        public Matrix getMatrix() {
+            return matrix;
+        }
+
+        /**
+         * Sets the alpha of this group, it is multiplied with the alpha of 
+         * the parent group
+         * @param alpha The alpha (0..255)
+         */
+        public void setAlpha(int alpha) {
+            this.alpha = Math.max(0, Math.min(255, alpha));
+            invalidate();
+        }
+
+        /**
+         * Get the alpha of this group
+         * @return The alpha (0..255)
+         */
+        public int getAlpha() {
+            return alpha;
+        }
+
+        /**
+         * Call it when the Matrix of this group has been modified in place.
+         * Only the world matrices of this group's subtree are recomputed.
+         */
+        public void invalidate() {
+            if (!valid) {
+                return;
+            }
+            dirty = true;
+            invalidateGroup(this, isAnimated());
+        }
+
+        /**
+         * Recomposes the cached world matrix and alpha if this group
+         * or any of its ancestors has changed
+         * @return The version of the cached data
+         */
+        private int validate() {
+            if (parent != null && parent.validate() != parentVersion) {
+                dirty = true;
+            }
+            if (dirty) {
+                if (parent != null) {
+                    worldMatrix.set(parent.worldMatrix);
+                    if (matrix != null) {
+                        worldMatrix.preConcat(matrix);
+                    }
+                    worldAlpha = parent.worldAlpha * alpha / 255;
+                    parentVersion = parent.version;
+                } else {
+                    worldMatrix.set(matrix);
+                    worldAlpha = alpha;
+                }
+                version++;
+                dirty = false;
+            }
+            return version;
+        }
+
+        /**
+         * @return true if this group or any of its ancestors is animated
+         */
+        private boolean isAnimated() {
+            for (LayerGroup g = this; g != null; g = g.parent) {
+                if (g.animation != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Evaluates the animations of this group and its ancestors, once 
+         * per frame. Requires the world matrix to be valid.
+         * @return true if any of them is running, the composed frame is then
+         * stored in frameMatrix and frameAlpha
+         */
+        private boolean updateFrame(long currentTime, int frame) {
+            if (frameId == frame) {
+                return frameAnimated;
+            }
+            frameId = frame;
+            boolean parentAnimated = parent != null && parent.updateFrame(currentTime, frame);
+            boolean running = false;
+            Animation a = animation;
+            if (a != null) {
+                if (!a.isInitialized()) {
+                    Rect parentBounds = mBackground.getBounds();
+                    a.initialize((int) bounds.width(), (int) bounds.height(), 
+                            parentBounds.width(), parentBounds.height());
+                }
+                running = a.getTransformation(currentTime, transformation);
+                if (!running) {
+                    // animation ended: set it to null
+                    animation = null;
+                    invalidateStaticContent();
+                }
+            }
+            frameAnimated = parentAnimated || running;
+            if (frameAnimated) {
+                if (parentAnimated) {
+                    frameMatrix.set(parent.frameMatrix);
+                    frameAlpha = parent.frameAlpha;
+                } else
+                if (parent != null) {
+                    frameMatrix.set(parent.worldMatrix);
+                    frameAlpha = parent.worldAlpha / 255f;
+                } else {
+                    frameMatrix.reset();
+                    frameAlpha = 1;
+                }
+                if (matrix != null) {
+                    frameMatrix.preConcat(matrix);
+                }
+                frameAlpha *= alpha / 255f;
+                if (running) {
+                    frameMatrix.preConcat(transformation.getMatrix());
+                    frameAlpha *= transformation.getAlpha();
+                }
+            }
+            return frameAnimated;
+        }
+
+        /**
+         * Get a name of this group
+         * @return The name or null if none
+         */
+        public String getName() {
+            return groupName;
+        }
+
+        /**
+         * Get a parent of this group
+         * @return The parent group or null if none
+         */
+        public LayerGroup getParent() {
+            return parent;
+        }
+    }
+
+    /**
+     * Placeholder of a lazily inflated bitmap layer, see 
+     * {@link PatchworkDrawable#setLazyInflationEnabled(boolean)}. The bitmap
+     * is decoded the first time it is drawn and may be evicted again.
+     * Never opaque so it is never used as an occluder.
+     */
+    private class DeferredDrawable extends Drawable {
+        private int resId;
+        private float scale;
+        private Drawable drawable;
+        private int alpha = 255;
+        private ColorFilter colorFilter;
+        private int size;
+        private int lastFrameId;
+        private Layer layer;
+
+        DeferredDrawable(int resId, float scale) {
+            this.resId = resId;
+            this.scale = scale;
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            lastFrameId = mFrameId;
+            if (drawable == null) {
+                inflate();
+            }
+            drawable.draw(canvas);
+        }
+
+        private void inflate() {
+            Rect bounds = getBounds();
+            // already acquired
+            drawable = mResources.getDrawable(resId, bounds, scale);
+            drawable.setBounds(bounds);
+            drawable.setAlpha(alpha);
+            drawable.setColorFilter(colorFilter);
+            size = DrawableCache.NON_BITMAP_SIZE;
+            if (drawable instanceof BitmapDrawable) {
+                Bitmap b = ((BitmapDrawable) drawable).getBitmap();
+                size = b.getRowBytes() * b.getHeight();
+            }
+            mInflatedLayers.add(this);
+            mInflatedSize += size;
+        }
+
+        /**
+         * @return true if the layer is within the viewport of the last frame,
+         * whether drawn or not
+         */
+        boolean isInViewport() {
+            return layer != null && layer.visible && (RectF.intersects(mViewport, layer.mappedBounds) ||
+                    RectF.intersects(mViewport, layer.drawnBounds));
+        }
+
+        /**
+         * Drops the bitmap (if inflated) and removes this from mInflatedLayers
+         */
+        void evict() {
+            if (drawable == null) {
+                return;
+            }
+            release();
+            mInflatedLayers.remove(this);
+        }
+
+        /**
+         * Drops the bitmap, leaving this in mInflatedLayers
+         */
+        private void release() {
+            BitmapPool.release(drawable);
+            drawable = null;
+            mInflatedSize -= size;
+        }
+
+        @Override
+        protected void onBoundsChange(Rect bounds) {
+            if (drawable != null) {
+                drawable.setBounds(bounds);
+            }
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            this.alpha = alpha;
+            if (drawable != null) {
+                drawable.setAlpha(alpha);
+            }
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter cf) {
+            colorFilter = cf;
+            if (drawable != null) {
+                drawable.setColorFilter(cf);
+            }
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+
+    /**
+     * Uniform grid over the background bounds used for hit testing.
+     * 
+     * Every cell holds the layers whose mapped bounds intersect it, sorted
+     * by their z-order, so the lookup tests only the layers of a single cell.
+     * Layers (or points) outside the background area are clamped to the 
+     * border cells.
+     */
+    private class LayerGrid {
+        private final static int SIZE = 16;
+
+        private ArrayList<ArrayList<Layer>> mCells;
+        private float mLeft;
+        private float mTop;
+        private float mCellWidth;
+        private float mCellHeight;
+
+        public LayerGrid(Rect area) {
+            mCells = new ArrayList<ArrayList<Layer>>(SIZE * SIZE);
+            for (int i = 0; i < SIZE * SIZE; i++) {
+                mCells.add(null);
+            }
+            mLeft = area.left;
+            mTop = area.top;
+            mCellWidth = Math.max(1, area.width() / (float) SIZE);
+            mCellHeight = Math.max(1, area.height() / (float) SIZE);
+        }
+
+        private int column(float x) {
+            return Math.max(0, Math.min(SIZE - 1, (int) ((x - mLeft) / mCellWidth)));
+        }
+
+        private int row(float y) {
+            return Math.max(0, Math.min(SIZE - 1, (int) ((y - mTop) / mCellHeight)));
+        }
+
+        public ArrayList<Layer> getCell(float x, float y) {
+            return mCells.get(row(y) * SIZE + column(x));
+        }
+
+        public void insert(Layer layer) {
+            layer.validate();
+            RectF bounds = layer.mappedBounds;
+            Rect cells = layer.cells;
+            cells.set(column(bounds.left), row(bounds.top), column(bounds.right), row(bounds.bottom));
+            for (int r = cells.top; r <= cells.bottom; r++) {
+                for (int c = cells.left; c <= cells.right; c++) {
+                    int idx = r * SIZE + c;
+                    ArrayList<Layer> cell = mCells.get(idx);
+                    if (cell == null) {
+                        cell = new ArrayList<Layer>();
+                        mCells.set(idx, cell);
+                    }
+                    cell.add(insertionPoint(cell, layer.index), layer);
+                }
+            }
+        }
+
+        private int insertionPoint(ArrayList<Layer> cell, int index) {
+            int lo = 0;
+            int hi = cell.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cell.get(mid).index < index) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        public void remove(Layer layer) {
+            Rect cells = layer.cells;
+            for (int r = cells.top; r <= cells.bottom; r++) {
+                for (int c = cells.left; c <= cells.right; c++) {
+                    ArrayList<Layer> cell = mCells.get(r * SIZE + c);
+                    if (cell != null) {
+                        cell.remove(layer);
+                    }
+                }
+            }
+            cells.setEmpty();
+        }
+
+        public void update(Layer layer) {
+            remove(layer);
+            insert(layer);
+        }
+
+        public void clear() {
+            for (int i = 0; i < SIZE * SIZE; i++) {
+                ArrayList<Layer> cell = mCells.get(i);
+                if (cell != null) {
+                    cell.clear();
+                }
+            }
         }
     }
 
@@ -613,9 +3653,153 @@ public class PatchworkDrawable extends Drawable implements Callback {
             super(ctx.getAssets(), new DisplayMetrics(), null);
         }
         
+        /**
+         * Returns a mutated copy of the Drawable shared through 
+         * {@link DrawableCache}, so that the alpha, bounds etc. of
+         * every layer stay independent
+         */
         @Override
         public Drawable getDrawable(int id) throws NotFoundException {
-            Drawable d = super.getDrawable(id);
+            int density = getDisplayMetrics().densityDpi;
+            // not decoded by getDrawable(int, Rect, float) so never managed 
+            // by the BitmapPool, nothing to release
+            ConstantState state = DrawableCache.get(id, density);
+            Drawable d;
+            if (state != null) {
+                d = state.newDrawable(this);
+            } else {
+                d = super.getDrawable(id);
+                DrawableCache.put(id, density, d);
+            }
+            return prepare(d);
+        }
+
+        /**
+         * Like {@link #getDrawable(int)} but a bitmap is decoded with the
+         * biggest power of 2 sample size that keeps it at least as big as 
+         * the target size, and a jpeg (always opaque) as RGB_565. The 
+         * downsampled Drawable keeps the intrinsic size of the full one.
+         * The Bitmap is managed by the {@link BitmapPool}, reusing a pooled
+         * one if possible, and is returned acquired: the caller releases it
+         * when done (e.g. once a layer holds its own reference).
+         * @param id Id of the drawable resource
+         * @param bounds The bounds the Drawable will be drawn into (or null 
+         * if drawn with its intrinsic size)
+         * @param scale The scale (0..1] the Drawable will be drawn with
+         */
+        public Drawable getDrawable(int id, Rect bounds, float scale) throws NotFoundException {
+            TypedValue value = new TypedValue();
+            getValue(id, value, true);
+            if (!isDecodable(value)) {
+                return getDrawable(id);
+            }
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            decode(id, value, opts);
+            if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+                return getDrawable(id);
+            }
+            int fullWidth = opts.outWidth;
+            int fullHeight = opts.outHeight;
+            float width = (bounds != null? bounds.width() : fullWidth) * scale;
+            float height = (bounds != null? bounds.height() : fullHeight) * scale;
+            int sampleSize = 1;
+            int shift = 0;
+            while (fullWidth / (sampleSize * 2) >= width && 
+                    fullHeight / (sampleSize * 2) >= height && shift < 8) {
+                sampleSize *= 2;
+                shift++;
+            }
+            boolean opaque = "image/jpeg".equals(opts.outMimeType);
+            int density = getDisplayMetrics().densityDpi;
+            int variant = (shift + 1) | (opaque? 0x100 : 0);
+            ConstantState state = DrawableCache.get(id, density, variant);
+            Drawable d;
+            if (state != null) {
+                d = state.newDrawable(this);
+            } else {
+                opts.inJustDecodeBounds = false;
+                opts.inSampleSize = sampleSize;
+                opts.inPreferredConfig = opaque? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+                opts.inDither = opaque;
+                int sampledWidth = (fullWidth + sampleSize - 1) / sampleSize;
+                int sampledHeight = (fullHeight + sampleSize - 1) / sampleSize;
+                boolean reused = BitmapPool.prepare(opts, sampledWidth, sampledHeight);
+                Bitmap bitmap;
+                try {
+                    bitmap = decode(id, value, opts);
+                } catch (IllegalArgumentException e) {
+                    if (!reused) {
+                        throw e;
+                    }
+                    // the pooled Bitmap did not fit after all
+                    BitmapPool.onReuseFailed(opts);
+                    reused = false;
+                    bitmap = decode(id, value, opts);
+                }
+                if (bitmap == null) {
+                    if (reused) {
+                        // do not lose the pooled Bitmap taken for the decode
+                        BitmapPool.onReuseFailed(opts);
+                    }
+                    return getDrawable(id);
+                }
+                BitmapPool.register(bitmap);
+                // the caller's reference, taken before the cache can evict it
+                BitmapPool.acquire(bitmap);
+                d = new BitmapDrawable(this, bitmap);
+                DrawableCache.put(id, density, variant, d);
+            }
+            d = prepare(d);
+            if (bounds == null) {
+                d.setBounds(0, 0, fullWidth, fullHeight);
+            }
+            return d;
+        }
+
+        /**
+         * @return The size of the bitmap resource as bounds at (0, 0), or 
+         * null if the resource is not a png or jpg
+         */
+        public Rect getBitmapBounds(int id) throws NotFoundException {
+            TypedValue value = new TypedValue();
+            getValue(id, value, true);
+            if (!isDecodable(value)) {
+                return null;
+            }
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            decode(id, value, opts);
+            return new Rect(0, 0, opts.outWidth, opts.outHeight);
+        }
+
+        /**
+         * @return true if the resource is a png or jpg bitmap, not a nine patch
+         */
+        private boolean isDecodable(TypedValue value) {
+            String file = value.string != null? value.string.toString() : "";
+            return (file.endsWith(".png") || file.endsWith(".jpg") || file.endsWith(".jpeg")) && 
+                    !file.endsWith(".9.png");
+        }
+
+        private Bitmap decode(int id, TypedValue value, BitmapFactory.Options opts) throws NotFoundException {
+            InputStream in = openRawResource(id, value);
+            try {
+                return BitmapFactory.decodeStream(in, null, opts);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        /**
+         * Mutates the Drawable and makes a bitmap drawn 1:1 in pixels
+         */
+        private Drawable prepare(Drawable d) {
+            d = d.mutate();
             if (d instanceof BitmapDrawable) {
                 BitmapDrawable bd = (BitmapDrawable) d;
                 bd.getBitmap().setDensity(DisplayMetrics.DENSITY_DEFAULT);
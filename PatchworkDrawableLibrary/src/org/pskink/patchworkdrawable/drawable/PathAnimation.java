@@ -0,0 +1,64 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import android.view.animation.Animation;
+import android.view.animation.Transformation;
+
+/**
+ * An Animation that moves along a Path, using the lookup table of a
+ * shared {@link PathMotion} instead of measuring the Path every frame.
+ *
+ * Several layers can follow the same path at different distances from
+ * each other with {@link #setOffset(float)}, e.g. layer i with offset
+ * i * 0.05f, and/or different start times with {@link #setStartOffset(long)}.
+ */
+public class PathAnimation extends Animation {
+    private PathMotion mMotion;
+    private float mOffset;
+    private boolean mOrient;
+    private float[] mTmp = new float[3];
+
+    /**
+     * Creates a new PathAnimation, the duration has to be set with
+     * {@link #setDuration(long)}
+     * @param motion The sampled path
+     */
+    public PathAnimation(PathMotion motion) {
+        mMotion = motion;
+    }
+
+    /**
+     * Sets the offset along the path, added to the animation progress.
+     * The position wraps around on closed paths and is clamped on open ones.
+     * @param offset Offset as a fraction of the path length
+     */
+    public void setOffset(float offset) {
+        mOffset = offset;
+    }
+
+    /**
+     * @return The offset as a fraction of the path length
+     */
+    public float getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Rotates the layer along the tangent of the path
+     * @param orient true to rotate along the tangent
+     */
+    public void setOrientToTangent(boolean orient) {
+        mOrient = orient;
+    }
+
+    /**
+     * @return The shared sampled path
+     */
+    public PathMotion getMotion() {
+        return mMotion;
+    }
+
+    @Override
+    protected void applyTransformation(float interpolatedTime, Transformation t) {
+        mMotion.getMatrix(interpolatedTime + mOffset, mOrient, t.getMatrix(), mTmp);
+    }
+}
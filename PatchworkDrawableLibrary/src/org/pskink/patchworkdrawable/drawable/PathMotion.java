@@ -0,0 +1,138 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import android.graphics.Matrix;
+import android.graphics.Path;
+import android.graphics.PathMeasure;
+
+/**
+ * Positions and tangents of a Path sampled once at evenly spaced distances.
+ *
+ * Measuring a Path is expensive, a PathMotion does it only when created so
+ * any number of {@link PathAnimation}s (e.g. one per layer) following the
+ * same Path share the table and just interpolate it every frame.
+ * A PathMotion is immutable and can be shared between threads.
+ */
+public class PathMotion {
+    private final static float DEFAULT_SAMPLE_DISTANCE = 2;
+    // indices of the values written by getPosTan
+    public final static int X = 0;
+    public final static int Y = 1;
+    public final static int ANGLE = 2;
+
+    private float mLength;
+    private boolean mClosed;
+    private float[] mXs;
+    private float[] mYs;
+    private float[] mAngles;
+
+    /**
+     * Samples the path every 2 pixels
+     * @param path The path, all its contours are followed one after another
+     */
+    public PathMotion(Path path) {
+        this(path, 0);
+    }
+
+    /**
+     * Samples the path
+     * @param path The path, all its contours are followed one after another
+     * @param numSamples Number of samples, 0 to sample every 2 pixels
+     */
+    public PathMotion(Path path, int numSamples) {
+        PathMeasure pm = new PathMeasure(path, false);
+        mClosed = pm.isClosed();
+        float length = 0;
+        do {
+            length += pm.getLength();
+        } while (pm.nextContour());
+        mLength = length;
+        if (numSamples <= 0) {
+            numSamples = (int) Math.ceil(length / DEFAULT_SAMPLE_DISTANCE) + 1;
+        }
+        numSamples = Math.max(2, numSamples);
+        mXs = new float[numSamples];
+        mYs = new float[numSamples];
+        mAngles = new float[numSamples];
+
+        pm.setPath(path, false);
+        float[] pos = new float[2];
+        float[] tan = new float[2];
+        float contourStart = 0;
+        float contourLength = pm.getLength();
+        float prevAngle = 0;
+        for (int i = 0; i < numSamples; i++) {
+            float distance = length * i / (numSamples - 1);
+            while (distance > contourStart + contourLength && pm.nextContour()) {
+                contourStart += contourLength;
+                contourLength = pm.getLength();
+            }
+            pm.getPosTan(Math.min(distance - contourStart, contourLength), pos, tan);
+            float angle = (float) Math.toDegrees(Math.atan2(tan[1], tan[0]));
+            if (i > 0) {
+                // keep the angles continuous so they interpolate the short way
+                while (angle - prevAngle > 180) {
+                    angle -= 360;
+                }
+                while (angle - prevAngle < -180) {
+                    angle += 360;
+                }
+            }
+            mXs[i] = pos[0];
+            mYs[i] = pos[1];
+            mAngles[i] = angle;
+            prevAngle = angle;
+        }
+    }
+
+    /**
+     * @return The total length of the path
+     */
+    public float getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return true if the (first contour of the) path is closed, the
+     * fractions outside 0..1 then wrap around instead of being clamped
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Interpolates the position and the tangent angle
+     * @param fraction Fraction of the path length (0..1)
+     * @param out Where {@link #X}, {@link #Y} and {@link #ANGLE} (in degrees)
+     * are written
+     */
+    public void getPosTan(float fraction, float[] out) {
+        if (mClosed) {
+            fraction -= (float) Math.floor(fraction);
+        } else {
+            fraction = Math.max(0, Math.min(1, fraction));
+        }
+        int last = mXs.length - 1;
+        float pos = fraction * last;
+        int i = Math.min((int) pos, last - 1);
+        float f = pos - i;
+        out[X] = mXs[i] + (mXs[i + 1] - mXs[i]) * f;
+        out[Y] = mYs[i] + (mYs[i + 1] - mYs[i]) * f;
+        out[ANGLE] = mAngles[i] + (mAngles[i + 1] - mAngles[i]) * f;
+    }
+
+    /**
+     * Sets the matrix to the translation (and optionally the rotation) at
+     * given fraction of the path, like {@link PathMeasure#getMatrix}
+     * @param fraction Fraction of the path length (0..1)
+     * @param orient true to rotate along the tangent
+     * @param m The matrix to set
+     * @param tmp Array of at least 3 floats used for the computation
+     */
+    public void getMatrix(float fraction, boolean orient, Matrix m, float[] tmp) {
+        getPosTan(fraction, tmp);
+        m.setTranslate(tmp[X], tmp[Y]);
+        if (orient) {
+            m.preRotate(tmp[ANGLE]);
+        }
+    }
+}
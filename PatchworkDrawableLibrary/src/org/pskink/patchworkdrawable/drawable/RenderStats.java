@@ -0,0 +1,254 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.util.Arrays;
+
+/**
+ * Rendering metrics of a {@link PatchworkDrawable}, collected only after
+ * {@link PatchworkDrawable#setStatsEnabled(boolean)}: the numbers of the
+ * last drawn frame, the totals since the stats were enabled (or reset)
+ * and the histograms of the draw times.
+ *
+ * A histogram has {@link #NUM_BUCKETS} buckets, bucket i counts the times
+ * lower than {@link #getBucketUpperBound(int)} and not counted by the
+ * previous buckets. Used on the main thread only.
+ */
+public class RenderStats {
+    /**
+     * A layer's Drawable invalidated itself
+     */
+    public final static int INVALIDATE_DRAWABLE = 0;
+    /**
+     * A layer was added, removed, moved or changed
+     */
+    public final static int INVALIDATE_LAYER = 1;
+    /**
+     * The next frame of the running animations
+     */
+    public final static int INVALIDATE_ANIMATION = 2;
+    /**
+     * The whole Drawable (a batch, a new scene etc.)
+     */
+    public final static int INVALIDATE_ALL = 3;
+    private final static int NUM_SOURCES = 4;
+
+    // in microseconds, the last bucket is unbounded
+    private final static long[] BUCKET_BOUNDS = {
+            100, 250, 500, 1000, 2000, 4000, 8000, 16000, Long.MAX_VALUE,
+    };
+    public final static int NUM_BUCKETS = 9;
+
+    // last frame
+    private long mFrameTime;
+    private int mLayersDrawn;
+    private int mLayersCulled;
+    private int mLayersFlattened;
+    private int mActiveAnimations;
+    // totals
+    private int mFrameCount;
+    private long mTotalFrameTime;
+    private long mMaxFrameTime;
+    private int[] mFrameHistogram = new int[NUM_BUCKETS];
+    private int[] mInvalidations = new int[NUM_SOURCES];
+    private int mHitTestCount;
+    private long mTotalHitTestTime;
+    private long mMaxHitTestTime;
+    private boolean mLayerHistograms;
+
+    RenderStats() {
+    }
+
+    /**
+     * Enables the per layer histograms of the draw times, see
+     * {@link PatchworkDrawable.Layer#getDrawTimeHistogram()}. They cost two
+     * {@link System#nanoTime()} calls per drawn layer.
+     * @param enabled true to collect the per layer histograms
+     */
+    public void setLayerHistogramsEnabled(boolean enabled) {
+        mLayerHistograms = enabled;
+    }
+
+    /**
+     * @return true if the per layer histograms are collected
+     */
+    public boolean isLayerHistogramsEnabled() {
+        return mLayerHistograms;
+    }
+
+    /**
+     * @return Time spent in {@link PatchworkDrawable#draw} during the last
+     * frame in nanoseconds
+     */
+    public long getFrameTime() {
+        return mFrameTime;
+    }
+
+    /**
+     * @return Number of layers drawn in the last frame (not counting the
+     * layers drawn as a part of a flattened bitmap)
+     */
+    public int getLayersDrawn() {
+        return mLayersDrawn;
+    }
+
+    /**
+     * @return Number of visible layers skipped in the last frame because
+     * they were outside of the clip or occluded
+     */
+    public int getLayersCulled() {
+        return mLayersCulled;
+    }
+
+    /**
+     * @return Number of layers drawn as a part of a flattened bitmap in the
+     * last frame
+     */
+    public int getLayersFlattened() {
+        return mLayersFlattened;
+    }
+
+    /**
+     * @return Number of layers animated in the last frame, including the
+     * offscreen ones
+     */
+    public int getActiveAnimations() {
+        return mActiveAnimations;
+    }
+
+    /**
+     * @return Number of frames drawn
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return Average frame time in nanoseconds
+     */
+    public long getAverageFrameTime() {
+        return mFrameCount > 0? mTotalFrameTime / mFrameCount : 0;
+    }
+
+    /**
+     * @return Maximum frame time in nanoseconds
+     */
+    public long getMaxFrameTime() {
+        return mMaxFrameTime;
+    }
+
+    /**
+     * @return A copy of the histogram of the frame times
+     */
+    public int[] getFrameTimeHistogram() {
+        return mFrameHistogram.clone();
+    }
+
+    /**
+     * @param source One of {@link #INVALIDATE_DRAWABLE}, {@link #INVALIDATE_LAYER},
+     * {@link #INVALIDATE_ANIMATION}, {@link #INVALIDATE_ALL}
+     * @return Number of invalidations requested by given source
+     */
+    public int getInvalidationCount(int source) {
+        return mInvalidations[source];
+    }
+
+    /**
+     * @return Number of hit tests (getLayersAt and getTopLayerAt calls)
+     */
+    public int getHitTestCount() {
+        return mHitTestCount;
+    }
+
+    /**
+     * @return Average hit test time in nanoseconds
+     */
+    public long getAverageHitTestTime() {
+        return mHitTestCount > 0? mTotalHitTestTime / mHitTestCount : 0;
+    }
+
+    /**
+     * @return Maximum hit test time in nanoseconds
+     */
+    public long getMaxHitTestTime() {
+        return mMaxHitTestTime;
+    }
+
+    /**
+     * @param bucket Index of a histogram bucket
+     * @return The upper bound of the bucket in nanoseconds (exclusive)
+     */
+    public static long getBucketUpperBound(int bucket) {
+        long bound = BUCKET_BOUNDS[bucket];
+        return bound == Long.MAX_VALUE? bound : bound * 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "RenderStats [frames: " + mFrameCount +
+                ", last frame: " + mFrameTime / 1000 + " us" +
+                ", avg: " + getAverageFrameTime() / 1000 + " us" +
+                ", max: " + mMaxFrameTime / 1000 + " us" +
+                ", drawn: " + mLayersDrawn +
+                ", culled: " + mLayersCulled +
+                ", flattened: " + mLayersFlattened +
+                ", animations: " + mActiveAnimations +
+                ", invalidations: " + mInvalidations[INVALIDATE_DRAWABLE] +
+                "/" + mInvalidations[INVALIDATE_LAYER] +
+                "/" + mInvalidations[INVALIDATE_ANIMATION] +
+                "/" + mInvalidations[INVALIDATE_ALL] +
+                ", hit tests: " + mHitTestCount +
+                ", avg hit test: " + getAverageHitTestTime() / 1000 + " us]";
+    }
+
+    void endFrame(long time, int drawn, int culled, int flattened, int animations) {
+        mFrameTime = time;
+        mLayersDrawn = drawn;
+        mLayersCulled = culled;
+        mLayersFlattened = flattened;
+        mActiveAnimations = animations;
+        mFrameCount++;
+        mTotalFrameTime += time;
+        mMaxFrameTime = Math.max(mMaxFrameTime, time);
+        addToHistogram(mFrameHistogram, time);
+    }
+
+    void addInvalidation(int source) {
+        mInvalidations[source]++;
+    }
+
+    void addHitTest(long time) {
+        mHitTestCount++;
+        mTotalHitTestTime += time;
+        mMaxHitTestTime = Math.max(mMaxHitTestTime, time);
+    }
+
+    /**
+     * Clears everything but the settings
+     */
+    void reset() {
+        mFrameTime = 0;
+        mLayersDrawn = 0;
+        mLayersCulled = 0;
+        mLayersFlattened = 0;
+        mActiveAnimations = 0;
+        mFrameCount = 0;
+        mTotalFrameTime = 0;
+        mMaxFrameTime = 0;
+        Arrays.fill(mFrameHistogram, 0);
+        Arrays.fill(mInvalidations, 0);
+        mHitTestCount = 0;
+        mTotalHitTestTime = 0;
+        mMaxHitTestTime = 0;
+    }
+
+    /**
+     * Counts the time (in nanoseconds) in its bucket
+     */
+    static void addToHistogram(int[] histogram, long time) {
+        long us = time / 1000;
+        int bucket = 0;
+        while (us >= BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        histogram[bucket]++;
+    }
+}
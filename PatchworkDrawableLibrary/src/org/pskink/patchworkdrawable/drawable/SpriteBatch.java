@@ -0,0 +1,140 @@
+package org.pskink.patchworkdrawable.drawable;
+
+import java.lang.reflect.Method;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+import android.os.Build;
+
+/**
+ * Collects consecutive atlas frames that share the sprite sheet, alpha and
+ * ColorFilter and draws them with one Canvas.drawVertices call.
+ *
+ * drawVertices is not supported by hardware accelerated Canvases, they
+ * draw every frame with its own drawBitmap, see {@link #isSupported(Canvas)}.
+ */
+class SpriteBatch {
+    private static final int MAX_SPRITES = 256;
+    private static Method sIsHardwareAccelerated;
+
+    private Paint mPaint;
+    private Bitmap mBitmap;
+    private int mAlpha;
+    private ColorFilter mColorFilter;
+    private BitmapShader mShader;
+    private Bitmap mShaderBitmap;
+    private float[] mVerts;
+    private float[] mTexs;
+    private short[] mIndices;
+    private int mCount;
+
+    static {
+        if (Build.VERSION.SDK_INT >= 11) {
+            try {
+                sIsHardwareAccelerated = Canvas.class.getMethod("isHardwareAccelerated");
+            } catch (NoSuchMethodException e) {
+                sIsHardwareAccelerated = null;
+            }
+        }
+    }
+
+    SpriteBatch() {
+        mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mVerts = new float[MAX_SPRITES * 8];
+        mTexs = new float[MAX_SPRITES * 8];
+        mIndices = new short[MAX_SPRITES * 6];
+        for (int i = 0; i < MAX_SPRITES; i++) {
+            // two triangles per quad: 0 1 2, 0 2 3
+            short v = (short) (i * 4);
+            int k = i * 6;
+            mIndices[k] = v;
+            mIndices[k + 1] = (short) (v + 1);
+            mIndices[k + 2] = (short) (v + 2);
+            mIndices[k + 3] = v;
+            mIndices[k + 4] = (short) (v + 2);
+            mIndices[k + 5] = (short) (v + 3);
+        }
+    }
+
+    /**
+     * @return false if the Canvas is hardware accelerated
+     */
+    static boolean isSupported(Canvas canvas) {
+        if (sIsHardwareAccelerated == null) {
+            return true;
+        }
+        try {
+            return !((Boolean) sIsHardwareAccelerated.invoke(canvas));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queues the frame, drawing the queued ones first if they cannot
+     * be batched with it
+     */
+    void add(Canvas canvas, Bitmap bitmap, Rect src, RectF dst, int alpha, ColorFilter cf) {
+        if (mCount == MAX_SPRITES ||
+                (mCount > 0 && (bitmap != mBitmap || alpha != mAlpha || cf != mColorFilter))) {
+            flush(canvas);
+        }
+        mBitmap = bitmap;
+        mAlpha = alpha;
+        mColorFilter = cf;
+        int k = mCount * 8;
+        setQuad(mVerts, k, dst.left, dst.top, dst.right, dst.bottom);
+        setQuad(mTexs, k, src.left, src.top, src.right, src.bottom);
+        mCount++;
+    }
+
+    /**
+     * Draws the queued frames
+     */
+    void flush(Canvas canvas) {
+        if (mCount == 0) {
+            return;
+        }
+        if (mShaderBitmap != mBitmap) {
+            mShader = new BitmapShader(mBitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            mShaderBitmap = mBitmap;
+        }
+        Paint paint = mPaint;
+        paint.setShader(mShader);
+        paint.setAlpha(mAlpha);
+        paint.setColorFilter(mColorFilter);
+        canvas.drawVertices(Canvas.VertexMode.TRIANGLES, mCount * 8, mVerts, 0, mTexs, 0,
+                null, 0, mIndices, 0, mCount * 6, paint);
+        mCount = 0;
+    }
+
+    /**
+     * Draws the queued frames and drops the references to the sprite sheet
+     */
+    void finish(Canvas canvas) {
+        flush(canvas);
+        mBitmap = null;
+        mColorFilter = null;
+        mShader = null;
+        mShaderBitmap = null;
+        mPaint.setShader(null);
+        mPaint.setColorFilter(null);
+    }
+
+    private static void setQuad(float[] a, int k, float left, float top, float right, float bottom) {
+        a[k] = left;
+        a[k + 1] = top;
+        a[k + 2] = right;
+        a[k + 3] = top;
+        a[k + 4] = right;
+        a[k + 5] = bottom;
+        a[k + 6] = left;
+        a[k + 7] = bottom;
+    }
+}
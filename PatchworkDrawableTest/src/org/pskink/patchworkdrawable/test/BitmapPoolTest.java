@@ -0,0 +1,55 @@
+package org.pskink.patchworkdrawable.test;
+
+import org.pskink.patchworkdrawable.drawable.BitmapPool;
+import org.pskink.patchworkdrawable.drawable.DrawableCache;
+import org.pskink.patchworkdrawable.drawable.HitMaskCache;
+import org.pskink.patchworkdrawable.drawable.PatchworkDrawable;
+import org.pskink.patchworkdrawable.drawable.PatchworkDrawable.Layer;
+
+import android.content.Context;
+import android.os.Build;
+import android.test.InstrumentationTestCase;
+
+/**
+ * Tests of the Bitmap reuse by {@link BitmapPool}. The 16x16 test images
+ * are opaque in their left (mask_left) or right (mask_right) half.
+ */
+public class BitmapPoolTest extends InstrumentationTestCase {
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = getInstrumentation().getContext();
+        DrawableCache.clear();
+        HitMaskCache.clear();
+        BitmapPool.onLowMemory();
+        BitmapPool.setMaxSize(1024 * 1024);
+    }
+
+    /**
+     * Decodes A, releases it, decodes B into the pooled Bitmap of A and
+     * hit tests B: the mask of A must not be used for B
+     */
+    public void testReusedBitmapDropsHitMask() {
+        if (Build.VERSION.SDK_INT < 11) {
+            // no Bitmap reuse
+            return;
+        }
+        PatchworkDrawable ld = new PatchworkDrawable(mContext, R.drawable.mask_left);
+        Layer a = ld.addLayer(R.drawable.mask_left, null, null);
+        a.setAlphaHitTest(true);
+        assertSame(a, ld.getTopLayerAt(null, 4, 8));
+        assertNull(ld.getTopLayerAt(null, 12, 8));
+
+        int hitCount = BitmapPool.getHitCount();
+        ld.removeLayer(a);
+        // drop the cache's reference so the Bitmap goes to the pool
+        DrawableCache.clear();
+        Layer b = ld.addLayer(R.drawable.mask_right, null, null);
+        b.setAlphaHitTest(true);
+        assertEquals("B not decoded into the pooled Bitmap", hitCount + 1, BitmapPool.getHitCount());
+        assertNull(ld.getTopLayerAt(null, 4, 8));
+        assertSame(b, ld.getTopLayerAt(null, 12, 8));
+    }
+}